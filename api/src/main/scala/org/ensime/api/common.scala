@@ -97,6 +97,29 @@ object NoteSeverity {
   }
 }
 
+/** Indexing order: the code that users are most likely to search first. */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+sealed trait IndexTier
+/** The targets of every project, i.e. the user's own code. */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object ProjectTier extends IndexTier
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object LibraryTier extends IndexTier
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object JdkTier extends IndexTier
+
+/** How full the heap is after garbage collection, see ensime.memory */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+sealed trait HeapPressure
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object HeapNormal extends HeapPressure
+/** Background work is slowed down. */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object HeapHigh extends HeapPressure
+/** Background work is paused. */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+case object HeapCritical extends HeapPressure
+
 @deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
 sealed abstract class RefactorLocation(val symbol: Symbol)
 
@@ -49,7 +49,11 @@ final case class EnsimeServerConfig(
   protocol: String,
   exitAfterIndex: Boolean,
   disableClassMonitoring: Boolean,
-  indexBatchSize: Int
+  indexBatchSize: Int,
+  indexSnapshot: Option[RawFile],
+  units: UnitsConfig,
+  trace: Option[RawFile],
+  memory: MemoryConfig
 )
 final case class ImportsConfig(
   locals: Boolean,
@@ -59,3 +63,11 @@ final case class ImportsConfig(
   maxIndividualImports: Int,
   collapseExclude: Set[String]
 )
+final case class UnitsConfig(
+  maxLoaded: Int,
+  maxRetainedMb: Int
+)
+final case class MemoryConfig(
+  high: Double,
+  critical: Double
+)
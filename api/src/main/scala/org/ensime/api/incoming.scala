@@ -305,3 +305,13 @@ final case class ExpandSelectionReq(file: File, start: Int, end: Int)
 @deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
 final case class StructureViewReq(fileInfo: SourceFileInfo)
     extends RpcAnalyserRequest
+
+/**
+ * Cancel a pending analyser request, identified by its call id. The
+ * cancelled request responds with an `EnsimeServerError`, requests
+ * that are already running can not be cancelled.
+ *
+ * Responds with a `VoidResponse`.
+ */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+final case class CancelReq(callId: Int) extends RpcAnalyserRequest
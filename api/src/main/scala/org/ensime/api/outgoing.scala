@@ -69,6 +69,27 @@ final case class SendBackgroundMessageEvent(
 @deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
 case object IndexerReadyEvent extends GeneralSwankEvent
 
+/**
+ * Initial indexing of a tier has completed, before `IndexerReadyEvent`.
+ * Tiers complete in order and searches are answered from the tiers
+ * that are ready.
+ */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+final case class IndexerTierReadyEvent(tier: IndexTier)
+    extends GeneralSwankEvent
+
+/**
+ * The server has changed how much background work it does, to avoid
+ * running out of memory. Requests that are not interactive may fail
+ * until the pressure is back to normal.
+ */
+@deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
+final case class HeapPressureEvent(
+  pressure: HeapPressure,
+  usedMb: Long,
+  maxMb: Long
+) extends GeneralSwankEvent
+
 /** The presentation compiler was restarted. Existing `:type-id`s are invalid. */
 @deriving(JsReader, JsWriter, SexpReader, SexpWriter, Canon)
 case object CompilerRestartedEvent extends GeneralSwankEvent
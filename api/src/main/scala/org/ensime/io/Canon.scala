@@ -25,22 +25,49 @@ import Scalaz._
 }
 object Canon extends LowPriorityCanon {
 
+  // keyed by the absolute path, shared so that watchers can invalidate
+  private[this] val maxCached = Integer.getInteger("ensime.canon.size", 10000)
+  private[this] val ttl =
+    java.lang.Long.getLong("ensime.canon.ttl", 30000L).longValue
+  private[this] val files = new CanonCache[String, File](maxCached, ttl)
+  private[this] val paths = new CanonCache[String, Path](maxCached, ttl)
+
+  /** Forget the canonical form of `f`, e.g. when it is created or deleted. */
+  def invalidate(f: File): Unit = {
+    val key = f.getAbsolutePath
+    files.invalidate(key)
+    paths.invalidate(key)
+  }
+
+  /** Forget all canonical forms, e.g. when a directory tree is removed. */
+  def invalidateAll(): Unit = {
+    files.invalidateAll()
+    paths.invalidateAll()
+  }
+
   implicit val file: Canon[File] =
     f =>
-      IO.syncThrowable(f.getCanonicalFile)
+      IO.syncThrowable(
+          files.getOrElseUpdate(f.getAbsolutePath)(f.getCanonicalFile)
+        )
         .catchAll(_ => IO.syncThrowable(f.getAbsoluteFile))
 
   implicit val path: Canon[Path] =
     p =>
       IO.sync {
-        val norm = p.normalize()
-        val target =
-          if (Files.isSymbolicLink(norm)) Files.readSymbolicLink(norm)
-          else norm
-        try target.toRealPath()
-        catch {
-          case e: IOException => target
+        def real: Path = {
+          val norm = p.normalize()
+          val target =
+            if (Files.isSymbolicLink(norm)) Files.readSymbolicLink(norm)
+            else norm
+          try target.toRealPath()
+          catch {
+            case e: IOException => target
+          }
         }
+        // keys are only unique within the default filesystem
+        if (p.getFileSystem ne FileSystems.getDefault) real
+        else paths.getOrElseUpdate(p.toAbsolutePath.toString)(real)
     }
 
   implicit val string: Canon[String]   = IO.now(_)
@@ -0,0 +1,51 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs/contributors
+// License: http://www.gnu.org/licenses/lgpl-3.0.en.html
+
+package org.ensime.io
+
+import java.util.{ LinkedHashMap => JLinkedHashMap, Map => JMap }
+
+/**
+ * A size bounded, least recently used, cache of canonical values with
+ * a time to live. Canonicalisation of files is several syscalls per
+ * request argument, which is noticeable on network filesystems.
+ *
+ * Entries are invalidated by the file watchers, but because not every
+ * path is watched (and symbolic links may change at any time) entries
+ * also expire after `ttlMillis`.
+ */
+final class CanonCache[K, V](maxSize: Int, ttlMillis: Long) {
+  private final case class Entry(value: V, expires: Long)
+
+  // access ordered, guarded by itself
+  private val entries = new JLinkedHashMap[K, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: JMap.Entry[K, Entry]): Boolean =
+      size > maxSize
+  }
+
+  def getOrElseUpdate(key: K)(compute: => V): V = {
+    val now = System.currentTimeMillis()
+    val hit = entries.synchronized {
+      val e = entries.get(key)
+      if (e != null && e.expires > now) Some(e.value) else None
+    }
+    hit.getOrElse {
+      // computed outside the lock, racing threads may do duplicate work
+      val value = compute
+      entries.synchronized {
+        entries.put(key, Entry(value, now + ttlMillis))
+      }
+      value
+    }
+  }
+
+  def invalidate(key: K): Unit = entries.synchronized {
+    entries.remove(key)
+  }
+
+  def invalidateAll(): Unit = entries.synchronized {
+    entries.clear()
+  }
+
+  def size: Int = entries.synchronized(entries.size)
+}
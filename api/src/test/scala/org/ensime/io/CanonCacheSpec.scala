@@ -0,0 +1,45 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs/contributors
+// License: http://www.gnu.org/licenses/lgpl-3.0.en.html
+
+package org.ensime.io
+
+import org.scalatest._
+import org.scalatest.Matchers._
+
+class CanonCacheSpec extends FlatSpec {
+
+  "CanonCache" should "only compute a value once" in {
+    val cache = new CanonCache[String, Int](10, 60000L)
+    var calls = 0
+    def compute(): Int = { calls += 1; calls }
+    cache.getOrElseUpdate("foo")(compute()) shouldBe 1
+    cache.getOrElseUpdate("foo")(compute()) shouldBe 1
+    calls shouldBe 1
+  }
+
+  it should "evict the least recently used entry" in {
+    val cache = new CanonCache[String, String](2, 60000L)
+    cache.getOrElseUpdate("a")("a")
+    cache.getOrElseUpdate("b")("b")
+    cache.getOrElseUpdate("a")("stale")
+    cache.getOrElseUpdate("c")("c")
+    cache.size shouldBe 2
+    cache.getOrElseUpdate("a")("fresh") shouldBe "a"
+    cache.getOrElseUpdate("b")("fresh") shouldBe "fresh"
+  }
+
+  it should "expire entries" in {
+    val cache = new CanonCache[String, String](10, 0L)
+    cache.getOrElseUpdate("a")("a")
+    cache.getOrElseUpdate("a")("fresh") shouldBe "fresh"
+  }
+
+  it should "support invalidation" in {
+    val cache = new CanonCache[String, String](10, 60000L)
+    cache.getOrElseUpdate("a")("a")
+    cache.invalidate("a")
+    cache.getOrElseUpdate("a")("fresh") shouldBe "fresh"
+    cache.invalidateAll()
+    cache.size shouldBe 0
+  }
+}
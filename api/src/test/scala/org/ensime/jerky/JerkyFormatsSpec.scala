@@ -83,6 +83,11 @@ class JerkyFormatsSpec
       s"""{"typehint":"TypecheckFileReq","fileInfo":{"file":"$file1","contents":"{/* code here */}","contentsIn":"$file2"}}"""
     )
 
+    roundtrip(
+      CancelReq(3): RpcRequest,
+      """{"typehint":"CancelReq","callId":3}"""
+    )
+
     roundtrip(
       TypecheckFilesReq(List(Left(file1), Left(file2))): RpcRequest,
       s"""{"typehint":"TypecheckFilesReq","files":["$file1","$file2"]}"""
@@ -180,6 +185,16 @@ class JerkyFormatsSpec
       """{"typehint":"IndexerReadyEvent"}"""
     )
 
+    roundtrip(
+      IndexerTierReadyEvent(ProjectTier): EnsimeServerMessage,
+      """{"typehint":"IndexerTierReadyEvent","tier":{"typehint":"ProjectTier"}}"""
+    )
+
+    roundtrip(
+      HeapPressureEvent(HeapHigh, 1500, 2048): EnsimeServerMessage,
+      """{"typehint":"HeapPressureEvent","pressure":{"typehint":"HeapHigh"},"usedMb":1500,"maxMb":2048}"""
+    )
+
     roundtrip(
       NewScalaNotesEvent(
         isFull = false,
@@ -76,6 +76,11 @@ class SwankyFormatsSpec extends FlatSpec with Matchers {
       s"""(:ensime-api-typecheck-file-req (:file-info (:file "$file1" :contents "{/* code here */}" :contents-in "$file2")))"""
     )
 
+    roundtrip(
+      CancelReq(3): RpcRequest,
+      "(:ensime-api-cancel-req (:call-id 3))"
+    )
+
     roundtrip(
       TypecheckFilesReq(List(Left(file1), Left(file2))): RpcRequest,
       s"""(:ensime-api-typecheck-files-req (:files ("$file1" "$file2")))"""
@@ -187,6 +192,16 @@ class SwankyFormatsSpec extends FlatSpec with Matchers {
       ":ensime-api-indexer-ready-event"
     )
 
+    roundtrip(
+      IndexerTierReadyEvent(ProjectTier): EnsimeEvent,
+      "(:ensime-api-indexer-tier-ready-event (:tier :ensime-api-project-tier))"
+    )
+
+    roundtrip(
+      HeapPressureEvent(HeapHigh, 1500, 2048): EnsimeEvent,
+      "(:ensime-api-heap-pressure-event (:pressure :ensime-api-heap-high :used-mb 1500 :max-mb 2048))"
+    )
+
     roundtrip(
       NewScalaNotesEvent(
         isFull = false,
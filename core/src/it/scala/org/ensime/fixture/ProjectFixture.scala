@@ -42,6 +42,8 @@ object ProjectFixture extends Matchers {
       case e: SendBackgroundMessageEvent => true
       case ClearAllScalaNotesEvent       => true
       case ClearAllJavaNotesEvent        => true
+      case e: IndexerTierReadyEvent      => true
+      case e: HeapPressureEvent          => true
     }
 
     val project = TestActorRef[Project](Project(probe.ref), "project")
@@ -0,0 +1,92 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import java.sql.Timestamp
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.{ Query, WildcardQuery }
+import org.ensime.indexer.graph.FileCheck
+import org.ensime.indexer.lucene._
+import org.ensime.util.EnsimeSpec
+import org.ensime.util.file._
+
+/**
+ * camelCase searches of an index of 1M class names, with the hump
+ * n-grams and with the wildcard query that they replaced.
+ * `-Densime.bench.symbols` and `-Densime.bench.repeat` make it bigger.
+ */
+class CamelCaseSearchBenchmark extends EnsimeSpec {
+  import IndexService._
+
+  private def setting(key: String, default: Int): Int =
+    sys.props.get(s"ensime.bench.$key").map(_.toInt).getOrElse(default)
+
+  private def millis[T](f: => T): (T, Long) = {
+    val start  = System.nanoTime()
+    val result = f
+    (result, (System.nanoTime() - start) / 1000000)
+  }
+
+  private val Words = Vector(
+    "add", "shutdown", "hook", "get", "set", "value", "buffer", "stream",
+    "reader", "writer", "factory", "builder", "handler", "context",
+    "manager", "service", "event", "listener", "config", "cache"
+  )
+
+  // as it was, before the humps were indexed
+  private def wildcard(query: String): Query =
+    new WildcardQuery(
+      new Term("fqn", query.replaceAll("(?<!^)([A-Z])", "*$1") + "*")
+    )
+
+  "camelCaseQuery" should "search 1M symbols by their humps" in {
+    withTempDir { dir =>
+      val symbols = setting("symbols", 1000000)
+      val repeat  = setting("repeat", 20)
+      val lucene = new SimpleLucene(
+        dir.toPath,
+        Map("fqn" -> new FqnAnalyzer, "file" -> new KeywordAnalyzer)
+      )
+      try {
+        val file = Some(FileCheck("file:///bench.jar", new Timestamp(0L)))
+        val (_, indexed) = millis {
+          (0 until symbols).grouped(10000).foreach { batch =>
+            val docs = batch.map { i =>
+              val name = List(i, i / 20, i / 400)
+                .map(n => Words(n % Words.size).capitalize)
+                .mkString
+              ClassIndex(s"org.bench.p${i % 1000}.$name$i", file).toDocument
+            }
+            Await.result(lucene.create(docs, commit = false), 1.minute)
+          }
+          Await.result(lucene.commit(), 1.minute)
+        }
+        info(s"indexed $symbols symbols in ${indexed}ms")
+
+        List("AdShHo", "GetVaBu", "StreamReCo").foreach { query =>
+          def time(q: Query): (Int, Long) = {
+            val (found, ms) = millis {
+              (1 to repeat).map { _ =>
+                Await.result(lucene.search(q, 100), 1.minute).size
+              }.last
+            }
+            (found, ms / repeat)
+          }
+          val Some(humps)              = camelCaseQuery(query)
+          val (byHumps, humpMillis)    = time(humps)
+          val (byWildcard, wildMillis) = time(wildcard(query))
+          info(
+            s"$query: humps ${humpMillis}ms ($byHumps hits), " +
+              s"wildcard ${wildMillis}ms ($byWildcard hits)"
+          )
+          byHumps should be > 0
+        }
+      } finally Await.result(lucene.shutdown(), 1.minute)
+    }
+  }
+}
@@ -2,8 +2,14 @@
 // License: http://www.gnu.org/licenses/gpl-3.0.en.html
 package org.ensime.indexer
 
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentLinkedQueue
+
 import org.apache.lucene.search.DisjunctionMaxQuery
+import org.objectweb.asm.ClassWriter
+import org.objectweb.asm.Opcodes._
 
+import scala.collection.JavaConverters._
 import scala.concurrent._
 import scala.concurrent.duration._
 import org.ensime.api._
@@ -28,9 +34,17 @@ class SearchServiceSpec
 
   "search refreshing" should "parse all files on a pristine structure" in {
     withSearchService { implicit service =>
-      val (deleted, indexed) = refresh()
+      val tiers = new ConcurrentLinkedQueue[IndexTier]
+      val (deleted, indexed) = Await.result(
+        service.refresh { t =>
+          tiers.add(t)
+          ()
+        },
+        Duration.Inf
+      )
       deleted shouldBe 0
       indexed should be > 0
+      tiers.asScala.toList shouldBe List(ProjectTier, LibraryTier, JdkTier)
     }
   }
 
@@ -455,6 +469,67 @@ class SearchServiceSpec
         .value should endWith("/src/main/scala/bad-convention.scala")
   }
 
+  "on demand indexing" should "index a library jar once, before refresh reaches it" in withSearchService {
+    (config, service) =>
+      val jar = config.projects.flatMap(_.libraryJars).head.file.toFile
+
+      // refresh is done with it
+      service.indexNow(jar) shouldBe false
+
+      service.awaitRefresh(jar)
+      service.indexNow(jar) shouldBe true
+      service.indexNow(jar) shouldBe false
+  }
+
+  it should "be skipped by refresh once it has been claimed" in withSearchService {
+    (config, service) =>
+      val jar  = config.projects.flatMap(_.libraryJars).head.file.toFile
+      val base = service.vfs.vfile(jar)
+
+      service.awaitRefresh(jar)
+      service.claim(base) shouldBe true
+      service.claim(base) shouldBe false
+
+      service.awaitRefresh(jar)
+      Await.result(service.indexNowAsync(jar), Duration.Inf) shouldBe true
+      service.claim(base) shouldBe false
+  }
+
+  "superseded generations" should "not be used by reverse lookups" in withSearchService {
+    (config, service) =>
+      implicit val s = service
+      def fromQux =
+        findUsages("org.example.Bar$").map(_.fqn).filter(_.startsWith("org.example.Qux"))
+      def inQux =
+        Await
+          .result(service.findUsageLocations("org.example.Bar$"), Duration.Inf)
+          .filter(_.line == Some(35)) // Foo.scala
+      fromQux should not be empty
+      inQux should not be empty
+
+      // Qux no longer uses Bar, compaction has not run yet
+      val classfile =
+        (config.projects.head.targets.head.file / "org/example/Qux.class").toFile
+      val cw = new ClassWriter(0)
+      cw.visit(V1_8, ACC_PUBLIC + ACC_SUPER, "org/example/Qux", null, "java/lang/Object", null)
+      cw.visitSource("Foo.scala", null)
+      val init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null)
+      init.visitCode()
+      init.visitVarInsn(ALOAD, 0)
+      init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false)
+      init.visitInsn(RETURN)
+      init.visitMaxs(1, 1)
+      init.visitEnd()
+      cw.visitEnd()
+      Files.write(classfile.toPath, cw.toByteArray)
+      classfile.setLastModified(System.currentTimeMillis())
+      refresh()
+
+      service.findUnique("org.example.Qux") shouldBe defined
+      fromQux shouldBe empty
+      inQux shouldBe empty
+  }
+
 }
 
 object SearchServiceTestUtils {
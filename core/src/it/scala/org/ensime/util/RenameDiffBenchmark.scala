@@ -0,0 +1,76 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+import java.nio.charset.StandardCharsets.UTF_8
+
+import scala.concurrent.ExecutionContext.Implicits.global
+
+import org.ensime.api._
+import org.ensime.util.file._
+
+/**
+ * The patch of a rename across 500 files, compared to the patch that
+ * diffing every whole file one after the other would make.
+ * `-Densime.bench.files` and `-Densime.bench.lines` make it bigger.
+ */
+class RenameDiffBenchmark extends EnsimeSpec {
+  implicit val cs = UTF_8
+
+  private def setting(key: String, default: Int): Int =
+    sys.props.get(s"ensime.bench.$key").map(_.toInt).getOrElse(default)
+
+  private def millis[T](f: => T): (T, Long) = {
+    val start  = System.nanoTime()
+    val result = f
+    (result, (System.nanoTime() - start) / 1000000)
+  }
+
+  "writeDiffChanges" should "make the patch of a 500 file rename" in {
+    withTempDir { dir =>
+      val files = setting("files", 500)
+      val lines = setting("lines", 400)
+
+      val sources = (1 to files).toList.map { i =>
+        val file = (dir / s"Source$i.scala").canon
+        val body = (1 to lines).map {
+          case l if l % 50 == 0 => s"  val use$l: Foo = new Foo($l)"
+          case l                => s"  def method$l(i: Int): Int = i * $l"
+        }
+        file.writeString(
+          ("import example.Foo" +: s"class Source$i {" +: body :+ "}")
+            .mkString("", "\n", "\n")
+        )
+        file
+      }
+      val edits: List[FileEdit] = sources.flatMap { file =>
+        val contents = file.readString()
+        "Foo".r.findAllMatchIn(contents).map { m =>
+          TextEdit(file, m.start, m.end, "Bar")
+        }
+      }
+
+      val (baseline, sequential) = millis {
+        val byFile = edits.collect { case e: TextEdit => e }.groupBy(_.file)
+        byFile.toList.sortBy(_._1).map {
+          case (file, fileEdits) =>
+            val contents = file.readString()
+            DiffUtil.compareContents(
+              contents.lines.toSeq,
+              FileEditHelper.applyEdits(fileEdits, contents).lines.toSeq,
+              file,
+              file
+            )
+        }.mkString("\n")
+      }
+
+      val (patch, streamed) = millis(FileUtils.writeDiffChanges(edits))
+      info(s"$files files of $lines lines, ${edits.size} edits: " +
+        s"whole file diffs ${sequential}ms, patch ${streamed}ms")
+
+      val Right(diff) = patch
+      try diff.readString() shouldBe baseline
+      finally diff.delete()
+    }
+  }
+}
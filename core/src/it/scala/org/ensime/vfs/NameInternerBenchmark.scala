@@ -0,0 +1,97 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.vfs
+
+import java.util.{ Collections, IdentityHashMap }
+
+import org.apache.commons.vfs2.{ FileName, FileType }
+import org.apache.commons.vfs2.provider.{ AbstractFileName, NameInterner }
+import org.ensime.util.EnsimeSpec
+import org.ensime.util.file._
+
+/**
+ * The heap that is retained by 500k classfile names (as many as a large
+ * classpath has), and the time to create them, with the weak interner,
+ * with `String.intern` (as upstream VFS does) and without interning.
+ * `-Densime.bench.names` makes it bigger.
+ *
+ * The JVM string table that `String.intern` fills is native memory and
+ * not part of these numbers, see `-XX:+PrintStringTableStatistics`.
+ */
+class NameInternerBenchmark extends EnsimeSpec {
+
+  private def setting(key: String, default: Int): Int =
+    sys.props.get(s"ensime.bench.$key").map(_.toInt).getOrElse(default)
+
+  private def millis[T](f: => T): (T, Long) = {
+    val start  = System.nanoTime()
+    val result = f
+    (result, (System.nanoTime() - start) / 1000000)
+  }
+
+  private def usedMb(): Long = {
+    (1 to 3).foreach(_ => System.gc())
+    val rt = Runtime.getRuntime
+    (rt.totalMemory - rt.freeMemory) / (1024 * 1024)
+  }
+
+  // distinct instances, not distinct values
+  private def instances(strings: Seq[String]): Int = {
+    val seen = Collections.newSetFromMap(
+      new IdentityHashMap[String, java.lang.Boolean]
+    )
+    strings.foreach(seen.add)
+    seen.size
+  }
+
+  private val StringIntern = new NameInterner {
+    def intern(s: String): String = s.intern()
+  }
+
+  "NameInterner" should "retain less heap than no interning for 500k classfile names" in {
+    withTempDir { dir =>
+      val count = setting("names", 500000)
+      val vfs   = EnsimeVFS()
+      val root  = vfs.vfile(dir).getName.asInstanceOf[AbstractFileName]
+      // many packages, with the base names that every package has
+      val paths = (0 until count).map { i =>
+        s"${root.getPath}/p${i / 200}/Class${i % 200}$$.class"
+      }
+
+      def create(interner: NameInterner): (Array[FileName], Long, Long) = {
+        val original = NameInterner.getInstance
+        NameInterner.setInstance(interner)
+        try {
+          val before = usedMb()
+          val (names, created) = millis {
+            paths.map { p =>
+              val name = root.createName(new String(p), FileType.FILE)
+              name.getBaseName
+              name.getExtension
+              name.getURI
+              name
+            }.toArray
+          }
+          (names, created, usedMb() - before)
+        } finally NameInterner.setInstance(original)
+      }
+
+      val results = List(
+        "none"          -> NameInterner.IDENTITY,
+        "String.intern" -> StringIntern,
+        "weak"          -> new NameInterner.Weak(NameInterner.DEFAULT_CAPACITY)
+      ).map {
+        case (label, interner) =>
+          val (names, created, retained) = create(interner)
+          info(s"$label: $count names in ${created}ms, ${retained}MB retained")
+          label -> instances(names.map(_.getExtension))
+      }.toMap
+
+      vfs.close()
+
+      results("none") shouldBe count
+      results("String.intern") shouldBe 1
+      results("weak") should be < count / 100
+    }
+  }
+}
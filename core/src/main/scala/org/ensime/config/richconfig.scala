@@ -28,7 +28,15 @@ package object richconfig {
       c.getString("ensime.protocol"),
       c.getBoolean("ensime.exitAfterIndex"),
       c.getBoolean("ensime.disableClassMonitoring"),
-      c.getInt("ensime.index.batchSize")
+      c.getInt("ensime.index.batchSize"),
+      Some(c.getString("ensime.index.snapshot"))
+        .filter(_.nonEmpty)
+        .map(s => RawFile(Paths.get(s).canon)),
+      parseServerUnitsConfig(c.getConfig("ensime.units")),
+      Some(c.getString("ensime.trace"))
+        .filter(_.nonEmpty)
+        .map(s => RawFile(Paths.get(s).canon)),
+      parseServerMemoryConfig(c.getConfig("ensime.memory"))
     )
   private def parseServerImportsConfig(c: Config): ImportsConfig =
     ImportsConfig(
@@ -39,6 +47,16 @@ package object richconfig {
       c.getInt("maxIndividualImports"),
       c.getStringList("collapseExclude").asScala.toSet
     )
+  private def parseServerUnitsConfig(c: Config): UnitsConfig =
+    UnitsConfig(
+      c.getInt("maxLoaded"),
+      c.getInt("maxRetainedMb")
+    )
+  private def parseServerMemoryConfig(c: Config): MemoryConfig =
+    MemoryConfig(
+      c.getDouble("high"),
+      c.getDouble("critical")
+    )
 
   implicit class RichEnsimeConfig(private val c: EnsimeConfig) extends AnyVal {
     // doesn't do the transitive lookups
@@ -0,0 +1,97 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import java.util.{ Arrays, LinkedHashMap, Map => JMap }
+
+import scala.collection.mutable
+import scala.reflect.internal.util.SourceFile
+
+import org.ensime.util.Metrics
+
+/**
+ * Answers to read-only queries (structure, type and symbol at point,
+ * doc signatures) about a source file, reused for as long as the
+ * file's content is the same and the compiler has not been asked to
+ * change anything, so that repeated queries from an editor do not
+ * queue up on the presentation compiler.
+ *
+ * Anything that may change a typed tree, e.g. reloading or unloading
+ * a file or restarting the compiler, must `invalidate`. That includes
+ * every completion (which reloads the file with the editor's buffer),
+ * typecheck and refactoring, so answers only survive between such
+ * requests: hovering and jumping around a file that is not being
+ * edited. The `hit`, `miss` and `invalidated` metrics are in the log
+ * when the Analyzer stops.
+ *
+ * A hit also skips asking the compiler to type the file, which the
+ * answer was already computed from: the file stays loaded until an
+ * unload, which invalidates.
+ *
+ * The content is compared, not only hashed, so that a collision can
+ * never answer for a different source. Only `Some` answers are kept,
+ * since `None` may be a failure.
+ *
+ * Not thread safe: owned by an Analyzer.
+ */
+private[core] final class AnalysisCache(maxFiles: Int, maxAnswers: Int) {
+  import AnalysisCache._
+
+  private[this] val files =
+    new LinkedHashMap[String, FileAnswers](16, 0.75f, true) {
+      override def removeEldestEntry(e: JMap.Entry[String, FileAnswers]) =
+        size() > maxFiles
+    }
+
+  val metrics = new Metrics("AnalysisCache")
+
+  def apply[T](source: SourceFile, query: Any)(
+    answer: => Option[T]
+  ): Option[T] = {
+    val path    = source.file.path
+    val content = source.content
+    val answers = Option(files.get(path)) match {
+      case Some(a)
+          if (a.content eq content) || Arrays.equals(a.content, content) =>
+        a
+      case _ =>
+        val a = FileAnswers(content, mutable.HashMap.empty)
+        files.put(path, a)
+        a
+    }
+    answers.values.get(query) match {
+      case Some(hit) =>
+        metrics.increment("hit")
+        Some(hit.asInstanceOf[T])
+      case None =>
+        metrics.increment("miss")
+        val result = answer
+        result.foreach { r =>
+          if (answers.values.size >= maxAnswers) answers.values.clear()
+          answers.values(query) = r
+        }
+        result
+    }
+  }
+
+  def invalidate(): Unit = {
+    if (!files.isEmpty) metrics.increment("invalidated")
+    files.clear()
+  }
+
+  def size: Int = files.size
+}
+
+private[core] object AnalysisCache {
+  // the content is kept, not copied: it is never mutated
+  private final case class FileAnswers(
+    content: Array[Char],
+    values: mutable.HashMap[Any, Any]
+  )
+
+  // queries, along with their position
+  final case class SymbolAt(point: Int)
+  final case class TypeAt(from: Int, to: Int)
+  final case class DocSignatureAt(from: Int, to: Int)
+  case object Structure
+}
@@ -4,6 +4,7 @@ package org.ensime.core
 
 import java.io.{ File => JFile }
 import java.nio.charset.Charset
+import java.nio.file.Files
 
 import scala.collection.breakOut
 import scala.concurrent.Future
@@ -19,7 +20,7 @@ import akka.pattern.pipe
 import org.ensime.api._
 import org.ensime.config.richconfig._
 import org.ensime.indexer.SearchService
-import org.ensime.util.{ PresentationReporter, ReportHandler }
+import org.ensime.util.{ Metrics, PresentationReporter, ReportHandler }
 import org.ensime.util.file._
 import org.ensime.util.sourcefile._
 import org.ensime.vfs._
@@ -74,6 +75,29 @@ class Analyzer(
 
   private case object SuspendAnalyzer
 
+  // requests are scheduled by priority rather than mailbox order, one
+  // at a time, via Drain and Scheduled messages to ourselves.
+  private val queue    = new AnalyzerQueue
+  private var draining = false
+  private case object Drain
+  private final case class Scheduled(item: AnalyzerQueue.Queued)
+  // held back until the heap pressure is no longer critical
+  private var deferred = Vector.empty[AnalyzerQueue.Queued]
+  private case object Relieved
+  private val metrics = new Metrics(s"Analyzer(${scoped.mkString(",")})")
+
+  // answers to read-only queries, until something changes
+  private val analysis = new AnalysisCache(maxFiles = 64, maxAnswers = 512)
+
+  // the files that requests have loaded into the compiler, see ensime.units
+  private val units = new LoadedUnits(
+    serverConfig.units.maxLoaded,
+    serverConfig.units.maxRetainedMb.toLong * 1024 * 1024
+  )
+
+  // when the classpath last changed, until the next response is sent
+  private var classpathChangedAt: Option[Long] = None
+
   protected var scalaCompiler: RichCompilerControl = _
 
   override def preStart(): Unit = {
@@ -141,8 +165,11 @@ class Analyzer(
     strategy: ReloadStrategy
   ): Unit = {
     log.warning("Restarting the Presentation Compiler")
+    analysis.invalidate()
     val files: List[SourceFile] = strategy match {
-      case ReloadStrategy.UnloadAll => Nil
+      case ReloadStrategy.UnloadAll =>
+        units.clear()
+        Nil
       case ReloadStrategy.LoadProject =>
         for {
           project <- projects
@@ -161,8 +188,36 @@ class Analyzer(
     broadcaster ! CompilerRestartedEvent
   }
 
-  override def postStop(): Unit =
+  /**
+   * Refreshes only the symbols from changed classpath entries, falling
+   * back to a full restart if the compiler can't do it.
+   */
+  protected def invalidateClasspath(entries: Set[File]): Unit = {
+    classpathChangedAt = Some(System.nanoTime())
+    analysis.invalidate()
+    val classpath = projects.flatMap(_.classpath).toSet
+    val (known, unknown) = entries.toList.partition(classpath)
+    val invalidated = unknown.isEmpty && metrics.timed("classpath.invalidate") {
+      scalaCompiler.askInvalidateClasspath(known)
+    }
+    if (invalidated) {
+      metrics.increment("classpath.incremental")
+      log.info(s"Refreshed ${known.size} classpath entries")
+      val loaded = scalaCompiler.loadedFiles
+      if (loaded.nonEmpty)
+        scalaCompiler.askReloadFiles(loaded)
+      scalaCompiler.askNotifyWhenReady()
+    } else {
+      metrics.increment("classpath.restart")
+      restartCompiler(ReloadStrategy.KeepLoaded)
+    }
+  }
+
+  override def postStop(): Unit = {
+    log.info(metrics.summary)
+    log.info(analysis.metrics.summary)
     Try(scalaCompiler.askShutdown())
+  }
 
   def charset: Charset = scalaCompiler.charset
 
@@ -180,6 +235,8 @@ class Analyzer(
   def ready: Receive = withLabel("ready") {
     case RestartScalaCompilerReq(id, strategy) =>
       restartCompiler(strategy)
+    case Analyzer.ClasspathChanged(_, entries) =>
+      invalidateClasspath(entries)
     case SuspendAnalyzer =>
       loadedFiles = scalaCompiler.loadedFiles // remember the state
       scalaCompiler.askShutdown()
@@ -190,7 +247,46 @@ class Analyzer(
     case TypecheckModule(id) =>
       restartCompiler(ReloadStrategy.LoadProject)
       sender ! VoidResponse
+    case cancel: Analyzer.Cancel =>
+      val (held, rest) = deferred.partition(q => cancel.of(q.sender.path))
+      deferred = rest
+      (queue.cancel(q => cancel.of(q.sender.path)) ++ held).foreach { q =>
+        metrics.increment(s"${q.kind}.cancelled")
+        q.sender ! EnsimeServerError(s"Request ${cancel.callId} was cancelled")
+      }
     case req: RpcAnalyserRequest =>
+      countdown.cancel()
+      countdown = setCountdown()
+      enqueue(req, sender())
+    case Relieved =>
+      val held = deferred
+      deferred = Vector.empty
+      held.foreach(q => enqueue(q.req, q.sender))
+    case Drain =>
+      queue.dequeue() match {
+        case Some(item) => self.tell(Scheduled(item), item.sender)
+        case None       => draining = false
+      }
+    case Scheduled(item)
+        if AnalyzerQueue.shed(item.priority, search.memory.pressure) =>
+      metrics.increment(s"${item.kind}.shed")
+      item.sender ! EnsimeServerError(
+        s"Not enough memory for ${item.kind}, try again later"
+      )
+      self ! Drain
+    case Scheduled(item)
+        if AnalyzerQueue.defer(item.priority, search.memory.pressure) =>
+      metrics.increment(s"${item.kind}.deferred")
+      if (deferred.isEmpty)
+        search.memory.relieved().foreach(_ => self ! Relieved)
+      deferred :+= item
+      self ! Drain
+    case Scheduled(item) =>
+      val kind = item.kind
+      metrics.time(
+        s"$kind.wait",
+        (System.nanoTime() - item.enqueuedNanos) / 1000000
+      )
       // fommil: I'm not entirely sure about the logic of
       // enabling/disabling the reporter so I am reluctant to refactor
       // this, but it would perhaps be simpler if we enable the
@@ -198,14 +294,33 @@ class Analyzer(
       // disable it when we explicitly want it to be quiet, instead of
       // enabling on every incoming message.
       reporter.enable()
-      countdown.cancel()
-      countdown = setCountdown()
-      allTheThings(req)
+      // async responses are only timed until they are dispatched
+      metrics.timed(s"$kind.run")(allTheThings(item.req))
+      track(item.req)
+      classpathChangedAt.foreach { start =>
+        val millis = (System.nanoTime() - start) / 1000000
+        metrics.time("classpath.firstResponse", millis)
+        log.info(s"First response after a classpath change took ${millis}ms")
+        classpathChangedAt = None
+      }
+      self ! Drain
+  }
+
+  private def enqueue(req: RpcAnalyserRequest, replyTo: ActorRef): Unit = {
+    queue.enqueue(req, replyTo).foreach { q =>
+      metrics.increment(s"${q.kind}.superseded")
+      q.sender ! EnsimeServerError("Superseded by a later request")
+    }
+    if (!draining) {
+      draining = true
+      self ! Drain
+    }
   }
 
   def suspended: Receive = withLabel("suspended") {
-    case req: RpcAnalyserRequest =>
+    case _: RpcAnalyserRequest | _: Scheduled | Drain | Relieved =>
       stash()
+      analysis.invalidate()
       scalaCompiler = makeScalaCompiler()
       if (loadedFiles.nonEmpty)
         scalaCompiler.askReloadFiles(loadedFiles)
@@ -220,17 +335,22 @@ class Analyzer(
     case UnloadFileReq(source) =>
       self forward UnloadFilesReq(List(source), false)
     case UnloadFilesReq(files, remove) =>
+      analysis.invalidate()
+      files.foreach(f => units.remove(f.file))
       scalaCompiler.askUnloadFiles(files, remove)
       sender ! VoidResponse
     case TypecheckFileReq(fileInfo) =>
       self forward TypecheckFilesReq(List(Right(fileInfo)))
     case TypecheckFilesReq(files) =>
+      analysis.invalidate()
       sender ! scalaCompiler.handleReloadFiles(
         files.map(toSourceFileInfo)(breakOut)
       )
     case req: RefactorReq =>
+      analysis.invalidate() // refactorings reload what they touch
       pipe(handleRefactorRequest(req)) to sender
     case CompletionsReq(fileInfo, point, maxResults, caseSens, _reload) =>
+      analysis.invalidate() // may reload the file with unsaved contents
       withExistingAsync(fileInfo) {
         reporter.disable()
         scalaCompiler.askCompletionsAt(pos(fileInfo, point),
@@ -252,18 +372,25 @@ class Analyzer(
     case SymbolAtPointReq(file, point: Int) =>
       sender ! withExisting(file) {
         val p = pos(file, point)
-        scalaCompiler.askLoadedTyped(p.source)
-        scalaCompiler.askSymbolInfoAt(p).getOrElse(FalseResponse)
+        analysis(p.source, AnalysisCache.SymbolAt(point)) {
+          scalaCompiler.askLoadedTyped(p.source)
+          scalaCompiler.askSymbolInfoAt(p)
+        }.getOrElse(FalseResponse)
       }
     case DocUriAtPointReq(file, range: OffsetRange) =>
       val p = pos(file, range)
-      scalaCompiler.askLoadedTyped(p.source)
-      sender() ! scalaCompiler.askDocSignatureAtPoint(p)
+      sender() ! analysis(p.source,
+                          AnalysisCache.DocSignatureAt(range.from, range.to)) {
+        scalaCompiler.askLoadedTyped(p.source)
+        scalaCompiler.askDocSignatureAtPoint(p)
+      }
     case TypeAtPointReq(file, range: OffsetRange) =>
       sender ! withExisting(file) {
         val p = pos(file, range)
-        scalaCompiler.askLoadedTyped(p.source)
-        scalaCompiler.askTypeInfoAt(p).getOrElse(FalseResponse)
+        analysis(p.source, AnalysisCache.TypeAt(range.from, range.to)) {
+          scalaCompiler.askLoadedTyped(p.source)
+          scalaCompiler.askTypeInfoAt(p)
+        }.getOrElse(FalseResponse)
       }
     case SymbolDesignationsReq(f, start, end, Nil) =>
       sender ! SymbolDesignations(f.file, List.empty)
@@ -288,10 +415,63 @@ class Analyzer(
     case StructureViewReq(fileInfo: SourceFileInfo) =>
       sender ! withExisting(fileInfo) {
         val sourceFile = createSourceFile(fileInfo)
-        StructureView(scalaCompiler.askStructure(sourceFile))
+        val members = analysis(sourceFile, AnalysisCache.Structure) {
+          Some(scalaCompiler.askStructure(sourceFile)).filter(_.nonEmpty)
+        }
+        StructureView(members.getOrElse(Nil))
       }
+    case CancelReq(_) =>
+      // handled by the AnalyzerManager
+      sender ! VoidResponse
+  }
+
+  /** The files that a request loads into the compiler, if any. */
+  private def loads(req: RpcAnalyserRequest): List[SourceFileInfo] =
+    req match {
+      case TypecheckFileReq(fileInfo)        => List(fileInfo)
+      case TypecheckFilesReq(files)          => files.map(toSourceFileInfo)
+      case c: CompletionsReq                 => List(c.fileInfo)
+      case FqnOfSymbolAtPointReq(file, _)    => List(file)
+      case FqnOfTypeAtPointReq(file, _)      => List(file)
+      case SymbolAtPointReq(file, _)         => List(toSourceFileInfo(file))
+      case DocUriAtPointReq(file, _)         => List(toSourceFileInfo(file))
+      case TypeAtPointReq(file, _)           => List(toSourceFileInfo(file))
+      case SymbolDesignationsReq(f, _, _, _) => List(toSourceFileInfo(f))
+      case ImplicitInfoReq(file, _)          => List(toSourceFileInfo(file))
+      case _                                 => Nil
+    }
+
+  /**
+   * Records the files that a request has loaded, pinning those that the
+   * editor has open, and unloads the least recently used ones that are
+   * beyond the configured limits.
+   */
+  private def track(req: RpcAnalyserRequest): Unit = {
+    val pin = req.isInstanceOf[TypecheckFileReq]
+    loads(req).foreach { f =>
+      if (units.touch(f.file, estimatedChars(f), pin))
+        metrics.increment("units.reloaded")
+    }
+    val victims = units.evict()
+    if (victims.nonEmpty) {
+      log.debug(s"Unloading ${victims.size} least recently used files")
+      analysis.invalidate()
+      scalaCompiler.askUnloadFiles(victims.map(SourceFileInfo(_)),
+                                   remove = false)
+      metrics.increment("units.evicted", victims.size.toLong)
+    }
+    metrics.gauge("units.loaded", units.size.toLong)
+    metrics.gauge("units.retainedMb", units.retainedBytes / (1024 * 1024))
   }
 
+  private def estimatedChars(f: SourceFileInfo): Long =
+    (f.contents, f.contentsIn, f.file) match {
+      case (Some(contents), _, _) => contents.length.toLong
+      case (_, Some(file), _)     => file.length
+      case (_, _, RawFile(path))  => Try(Files.size(path)).getOrElse(0L)
+      case _                      => 0L
+    }
+
   def withExisting(x: SourceFileInfo)(f: => RpcResponse): RpcResponse =
     if (x.exists()) f else EnsimeServerError(s"File does not exist: ${x.file}")
 
@@ -323,6 +503,23 @@ class Analyzer(
 }
 
 object Analyzer {
+
+  /**
+   * Cancels a queued request, sent to every analyzer by the manager.
+   * Call ids are only unique within a connection, whose
+   * RequestHandlers are named after the call id.
+   */
+  final case class Cancel(connection: ActorPath, callId: Int) {
+    def of(requester: ActorPath): Boolean =
+      requester.parent == connection && requester.name == callId.toString
+  }
+
+  /**
+   * Classfiles changed in the given classpath entries (output
+   * directories or jars) of a project, e.g. after a build.
+   */
+  final case class ClasspathChanged(id: EnsimeProjectId, entries: Set[File])
+
   def apply(
     broadcaster: ActorRef,
     indexer: ActorRef,
@@ -47,6 +47,8 @@ class AnalyzerManager(
         case None =>
           analyzers.values foreach (_ forward req)
       }
+    case req @ Analyzer.ClasspathChanged(id, _) =>
+      analyzers.get(id).foreach(_ forward req)
     case req @ UnloadAllReq =>
       analyzers.foreach {
         case (_, analyzer) => analyzer forward req
@@ -128,6 +130,12 @@ class AnalyzerManager(
       getOrSpawnNew(config.findProject(fileInfo)) forward req
     case req @ UnloadFileReq(file) =>
       getOrSpawnNew(config.findProject(file)) forward req
+    case CancelReq(callId) =>
+      // we don't know which analyzer has it, but only the connection
+      // (parent of the RequestHandlers) that sent it may cancel it
+      val cancel = Analyzer.Cancel(sender.path.parent, callId)
+      (sauron :: analyzers.values.toList) foreach (_ ! cancel)
+      sender ! VoidResponse
   }
 }
 
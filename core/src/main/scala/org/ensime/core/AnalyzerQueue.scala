@@ -0,0 +1,167 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import scala.collection.mutable
+
+import akka.actor.{ ActorPath, ActorRef }
+import org.ensime.api._
+import org.ensime.util.FileUtils.toSourceFileInfo
+
+/**
+ * Pending work for an `Analyzer`, ordered by priority class and then
+ * by arrival. Point queries that are made obsolete by a later query of
+ * the same kind, on the same file, from the same connection (e.g.
+ * completions while typing) are superseded and handed back to the
+ * caller to be answered.
+ *
+ * Changes to the contents of a file never overtake the queries on
+ * that file that arrived before them, which were made against the old
+ * contents: priority only reorders queries.
+ *
+ * Not thread safe, owned by the actor.
+ */
+private[core] final class AnalyzerQueue {
+  import AnalyzerQueue._
+
+  private val queues = Array.fill(Priorities)(mutable.Queue.empty[Queued])
+  private var arrivals = 0L
+
+  def isEmpty: Boolean  = queues.forall(_.isEmpty)
+  def nonEmpty: Boolean = !isEmpty
+  def size: Int         = queues.map(_.size).sum
+
+  /** @return any requests that have been superseded by `req` */
+  def enqueue(req: RpcAnalyserRequest, sender: ActorRef): List[Queued] = {
+    arrivals += 1
+    val item = Queued(req, sender, System.nanoTime(), arrivals)
+    val superseded = item.supersedeKey match {
+      case None => Nil
+      case key =>
+        queues(item.priority).dequeueAll(_.supersedeKey == key).toList
+    }
+    queues(item.priority).enqueue(item)
+    superseded
+  }
+
+  def dequeue(): Option[Queued] =
+    queues.find(_.nonEmpty).map { queue =>
+      val next = queue.head
+      val changed = contentsChanged(next.req)
+      // the earlier queries on the files that `next` changes go first
+      val earlier = queues.iterator.drop(Control + 1).flatMap { q =>
+        q.find(e => e.arrival < next.arrival && e.file.exists(changed))
+          .map(query => (q, query))
+      }
+      if (changed.isEmpty || !earlier.hasNext) queue.dequeue()
+      else {
+        val (q, query) = earlier.next()
+        q.dequeueFirst(_ eq query)
+        query
+      }
+    }
+
+  /** @return the requests that were removed */
+  def cancel(p: Queued => Boolean): List[Queued] =
+    queues.flatMap(_.dequeueAll(p)).toList
+}
+
+private[core] object AnalyzerQueue {
+  final case class Queued(req: RpcAnalyserRequest,
+                          sender: ActorRef,
+                          enqueuedNanos: Long,
+                          arrival: Long) {
+    def priority: Int = AnalyzerQueue.priority(req)
+    def kind: String  = req.getClass.getSimpleName
+    def file: Option[EnsimeFile] = AnalyzerQueue.file(req)
+
+    // the RequestHandler is a child of the connection
+    def connection: Option[ActorPath] = Option(sender).map(_.path.parent)
+
+    def supersedeKey: Option[(Option[ActorPath], String, EnsimeFile)] =
+      AnalyzerQueue.supersedeKey(req).map {
+        case (kind, f) => (connection, kind, f)
+      }
+  }
+
+  // changes to the compiler's view of the world, keep them in order
+  val Control = 0
+  // somebody is waiting at the keyboard
+  val Interactive = 1
+  val Highlighting = 2
+  // refactorings and anything else
+  val Background = 3
+
+  private val Priorities = 4
+
+  /** Refused under memory pressure, before interactive requests suffer. */
+  def shed(priority: Int, pressure: HeapPressure): Boolean = pressure match {
+    case HeapNormal => false
+    case _          => priority >= Background
+  }
+
+  /**
+   * Held back while the pressure is critical, rather than refused:
+   * editors don't ask for highlighting again after an error.
+   */
+  def defer(priority: Int, pressure: HeapPressure): Boolean =
+    pressure == HeapCritical && priority == Highlighting
+
+  def priority(req: RpcAnalyserRequest): Int = req match {
+    case _: RemoveFileReq | _: UnloadFileReq | _: UnloadFilesReq |
+        _: TypecheckFileReq | _: TypecheckFilesReq =>
+      Control
+    case _: CompletionsReq | _: TypeAtPointReq | _: SymbolAtPointReq |
+        _: DocUriAtPointReq | _: FqnOfSymbolAtPointReq |
+        _: FqnOfTypeAtPointReq | _: ExpandSelectionReq =>
+      Interactive
+    case _: SymbolDesignationsReq | _: ImplicitInfoReq | _: StructureViewReq =>
+      Highlighting
+    case _ =>
+      Background
+  }
+
+  /** The file that a query is about. */
+  def file(req: RpcAnalyserRequest): Option[EnsimeFile] = req match {
+    case CompletionsReq(info, _, _, _, _) => Some(info.file)
+    case TypeAtPointReq(f, _)             => Some(toSourceFileInfo(f).file)
+    case SymbolAtPointReq(f, _)           => Some(toSourceFileInfo(f).file)
+    case DocUriAtPointReq(f, _)           => Some(toSourceFileInfo(f).file)
+    case FqnOfSymbolAtPointReq(info, _)   => Some(info.file)
+    case FqnOfTypeAtPointReq(info, _)     => Some(info.file)
+    case ExpandSelectionReq(f, _, _)      => Some(RawFile(f.toPath))
+    case SymbolDesignationsReq(f, _, _, _) =>
+      Some(toSourceFileInfo(f).file)
+    case ImplicitInfoReq(f, _)  => Some(toSourceFileInfo(f).file)
+    case StructureViewReq(info) => Some(info.file)
+    case _                      => None
+  }
+
+  /** The files whose contents a request changes. */
+  def contentsChanged(req: RpcAnalyserRequest): Set[EnsimeFile] = req match {
+    case RemoveFileReq(f)         => Set(RawFile(f.toPath))
+    case UnloadFileReq(info)      => Set(info.file)
+    case UnloadFilesReq(infos, _) => infos.map(_.file).toSet
+    case TypecheckFileReq(info)   => Set(info.file)
+    case TypecheckFilesReq(fs)    => fs.map(toSourceFileInfo(_).file).toSet
+    case _                        => Set.empty
+  }
+
+  /**
+   * Requests with equal keys (and from the same connection) are
+   * superseded by the newest one. Only point queries qualify,
+   * everything else is always answered.
+   */
+  def supersedeKey(req: RpcAnalyserRequest): Option[(String, EnsimeFile)] =
+    req match {
+      case CompletionsReq(info, _, _, _, _) =>
+        Some(("completions", info.file))
+      case TypeAtPointReq(f, _) =>
+        Some(("type", toSourceFileInfo(f).file))
+      case SymbolAtPointReq(f, _) =>
+        Some(("symbol", toSourceFileInfo(f).file))
+      case DocUriAtPointReq(f, _) =>
+        Some(("doc", toSourceFileInfo(f).file))
+      case _ => None
+    }
+}
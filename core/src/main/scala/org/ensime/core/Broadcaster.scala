@@ -2,13 +2,20 @@
 // License: http://www.gnu.org/licenses/gpl-3.0.en.html
 package org.ensime.core
 
+import java.util.concurrent.ConcurrentHashMap
+
 import akka.actor._
-import scala.collection.immutable.ListSet
+import scala.collection.mutable
 
 /**
  * An actor that will forward all received messages onto actors that
  * have registered to receive messages. Messages wrapped with
- * `Persist` will be held and sent to all new subscribers.
+ * `Persist` will be held and sent to all new subscribers: only the
+ * latest message of each type is held, up to `maxPersisted` types.
+ *
+ * Subscribers that register with `RegisterShared` receive every
+ * message wrapped in a `Shared`, which is the same instance for all of
+ * them, so that each wire encoding is only computed once.
  *
  * To avoid memory leaks, non-restarting Actors should unregister when
  * they stop. Additional register requests for the same actor will
@@ -28,40 +35,92 @@ import scala.collection.immutable.ListSet
  *
  * 3. neither Akka solution has the concept of the "Persist" message.
  */
-class Broadcaster extends Actor with ActorLogging {
-  import Broadcaster.{ Persist, Register, Unregister }
+class Broadcaster(maxPersisted: Int) extends Actor with ActorLogging {
+  import Broadcaster._
+
+  def this() = this(Broadcaster.DefaultMaxPersisted)
 
-  var subscribers = Set.empty[ActorRef]
-  var persistant  = ListSet.empty[(ActorRef, Any)] // preserves order
+  var subscribers       = Set.empty[ActorRef]
+  var sharedSubscribers = Set.empty[ActorRef]
+
+  // latest message of each type, in the order they were last persisted
+  val persistant = mutable.LinkedHashMap.empty[Class[_], (ActorRef, Shared)]
 
   def receive = {
     case Register =>
       subscribers += sender()
-      persistant.foreach {
-        case (originalSender, message) =>
-          sender() tell (message, originalSender)
-      }
+      replay(sender(), _.message)
+
+    case RegisterShared =>
+      sharedSubscribers += sender()
+      replay(sender(), identity)
+
+    case Unregister =>
+      subscribers -= sender()
+      sharedSubscribers -= sender()
 
-    case Unregister => subscribers -= sender()
     case Persist(message) =>
-      persistant += ((sender(), message))
-      send(message)
+      val shared = new Shared(message)
+      persistant.remove(message.getClass)
+      persistant(message.getClass) = ((sender(), shared))
+      if (persistant.size > maxPersisted)
+        persistant.remove(persistant.head._1)
+      send(shared)
+
     case message =>
-      send(message)
+      send(new Shared(message))
   }
 
-  private def send(message: Any): Unit =
+  private def replay(subscriber: ActorRef, wrap: Shared => Any): Unit =
+    persistant.values.foreach {
+      case (originalSender, shared) =>
+        subscriber tell (wrap(shared), originalSender)
+    }
+
+  private def send(shared: Shared): Unit = {
     for {
       subscriber <- subscribers
     } {
-      subscriber forward message
+      subscriber forward shared.message
     }
+    for {
+      subscriber <- sharedSubscribers
+    } {
+      subscriber forward shared
+    }
+  }
 }
 
 object Broadcaster {
   object Register
+  object RegisterShared
   object Unregister
   final case class Persist(message: Any)
 
+  /**
+   * A broadcast `message`, with the encodings that subscribers have
+   * computed for it so far. `format` identifies an encoding, e.g. the
+   * wire protocol, and each one is computed at most once.
+   */
+  final class Shared private[core] (val message: Any) {
+    private[this] val encodings = new ConcurrentHashMap[Any, Any]
+
+    // subscribers racing on the same format may both encode, but they
+    // all use the first result. Encodings may depend on other formats.
+    def encoded[T](format: Any)(encode: => T): T = {
+      val existing = encodings.get(format)
+      if (existing != null) existing.asInstanceOf[T]
+      else {
+        val fresh  = encode
+        val winner = encodings.putIfAbsent(format, fresh)
+        if (winner == null) fresh else winner.asInstanceOf[T]
+      }
+    }
+
+    override def toString: String = s"Shared($message)"
+  }
+
+  val DefaultMaxPersisted = 64
+
   def apply(): Props = Props(new Broadcaster)
 }
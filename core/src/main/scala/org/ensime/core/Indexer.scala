@@ -5,6 +5,8 @@ package org.ensime.core
 import java.net.URI
 import java.nio.file.Paths
 
+import scala.concurrent.Future
+
 import akka.actor._
 import akka.event.LoggingReceive
 import akka.pattern.pipe
@@ -18,12 +20,18 @@ import org.ensime.vfs._
 // only used for queries by other components
 final case class TypeCompletionsReq(prefix: String, maxResults: Int)
 
+/**
+ * Answers searches against the index. Nothing here blocks the actor:
+ * every query is piped back to the sender when it completes, so slow
+ * searches do not hold up the requests queued behind them.
+ */
 class Indexer(
   index: SearchService,
   implicit val config: EnsimeConfig,
   implicit val vfs: EnsimeVFS
 ) extends Actor
     with ActorLogging {
+  import context.dispatcher
 
   private def typeResult(hit: FqnSymbol) = TypeSearchResult(
     hit.fqn,
@@ -32,27 +40,30 @@ class Indexer(
     LineSourcePositionHelper.fromFqnSymbol(hit)(vfs)
   )
 
-  def oldSearchTypes(query: String, max: Int): List[TypeSearchResult] = {
+  def oldSearchTypes(query: String,
+                     max: Int): Future[List[TypeSearchResult]] = {
     // Remove $/$class from the end.
     def strip(fqn: String): String = fqn.replaceAll("\\$(class)*$", "")
 
     import org.ensime.util.list._
 
     index
-      .searchClasses(query, max)
-      .map {
-        case c: ClassDef => c.copy(fqn = strip(c.fqn))
-        case f: Field    => f.copy(fqn = strip(f.fqn))
-        case m: Method   => m.copy(fqn = strip(m.fqn))
-      }
-      .distinctBy(_.fqn)
-      .map(typeResult)
+      .searchClassesAsync(query, max)
+      .map(
+        _.map {
+          case c: ClassDef => c.copy(fqn = strip(c.fqn))
+          case f: Field    => f.copy(fqn = strip(f.fqn))
+          case m: Method   => m.copy(fqn = strip(m.fqn))
+        }.distinctBy(_.fqn)
+          .map(typeResult)
+      )
   }
 
   private val typeDecls: Set[DeclaredAs] =
     Set(DeclaredAs.Class, DeclaredAs.Trait, DeclaredAs.Object)
-  def oldSearchSymbols(terms: List[String], max: Int) =
-    index.searchClassesMethods(terms, max).flatMap {
+  def oldSearchSymbols(terms: List[String],
+                       max: Int): Future[List[SymbolSearchResult]] =
+    index.searchClassesMethodsAsync(terms, max).map(_.flatMap {
       case hit if typeDecls.contains(hit.declAs) => Some(typeResult(hit))
       case hit if hit.declAs == DeclaredAs.Method =>
         Some(
@@ -65,22 +76,23 @@ class Indexer(
           )
         )
       case _ => None // were never supported
-    }
+    })
 
   override def receive = LoggingReceive {
     case ImportSuggestionsReq(file, point, names, maxResults) =>
-      val suggestions = names.map(oldSearchTypes(_, maxResults))
-      sender ! ImportSuggestions(suggestions)
+      // names are independent, so search for them concurrently
+      val suggestions = Future.traverse(names)(oldSearchTypes(_, maxResults))
+      pipe(suggestions.map(ImportSuggestions(_))) to sender
 
     case PublicSymbolSearchReq(keywords, maxResults) =>
       val suggestions = oldSearchSymbols(keywords, maxResults)
-      sender ! SymbolSearchResults(suggestions)
+      pipe(suggestions.map(SymbolSearchResults(_))) to sender
 
     case TypeCompletionsReq(query: String, maxResults: Int) =>
-      sender ! SymbolSearchResults(oldSearchTypes(query, maxResults))
+      val suggestions = oldSearchTypes(query, maxResults)
+      pipe(suggestions.map(SymbolSearchResults(_))) to sender
 
     case FindUsages(fqn: String) =>
-      import context.dispatcher
       val usages = index.findUsageLocations(fqn)
       val response = usages.map { usages =>
         val positions: List[LineSourcePosition] = usages
@@ -114,8 +126,6 @@ class Indexer(
       pipe(response) to sender
 
     case FindHierarchy(fqn: String) =>
-      import context.dispatcher
-
       def toClassInfos(h: Hierarchy): List[ClassInfo] = {
         def toClassInfo(c: ClassDef) =
           ClassInfo(c.scalaName,
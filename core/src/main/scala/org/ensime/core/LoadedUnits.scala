@@ -0,0 +1,96 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import java.util.LinkedHashMap
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import org.ensime.api.EnsimeFile
+
+/**
+ * Tracks the files that have been loaded into a presentation compiler,
+ * least recently used first, so that the compiler's memory can be
+ * bounded by the number of loaded files or by an estimate of what they
+ * retain. Files that are open in the editor are pinned and never
+ * chosen for eviction.
+ *
+ * The retained size is a rough estimate from the length of the source:
+ * typed trees, positions and symbols are typically two orders of
+ * magnitude larger than the text.
+ *
+ * A limit of 0 is unlimited. Not thread safe: owned by an Analyzer.
+ */
+private[core] final class LoadedUnits(maxLoaded: Int, maxRetainedBytes: Long) {
+  import LoadedUnits._
+
+  private[this] val loaded =
+    new LinkedHashMap[EnsimeFile, Loaded](16, 0.75f, true)
+  private[this] val evicted = mutable.Set.empty[EnsimeFile]
+  private[this] var retained: Long = 0L
+
+  /** @return true if the file had previously been evicted. */
+  def touch(file: EnsimeFile, chars: Long, pin: Boolean): Boolean = {
+    val previous = Option(loaded.get(file))
+    previous.foreach(l => retained -= l.bytes)
+    val next = Loaded(chars, pin || previous.exists(_.pinned))
+    loaded.put(file, next)
+    retained += next.bytes
+    evicted.remove(file)
+  }
+
+  /** Forget a file that has been unloaded, e.g. closed in the editor. */
+  def remove(file: EnsimeFile): Unit = {
+    Option(loaded.remove(file)).foreach(u => retained -= u.bytes)
+    evicted.remove(file)
+  }
+
+  def clear(): Unit = {
+    loaded.clear()
+    evicted.clear()
+    retained = 0L
+  }
+
+  /**
+   * Removes (and returns) the least recently used files that are not
+   * pinned, until the limits are respected or only pinned files remain.
+   * The caller is responsible for unloading them from the compiler.
+   */
+  def evict(): List[EnsimeFile] = {
+    def over: Boolean =
+      (maxLoaded > 0 && loaded.size > maxLoaded) ||
+        (maxRetainedBytes > 0 && retained > maxRetainedBytes)
+
+    if (!over) Nil
+    else {
+      val victims = mutable.ListBuffer.empty[EnsimeFile]
+      val it      = loaded.entrySet.iterator
+      while (over && it.hasNext) {
+        val e = it.next()
+        if (!e.getValue.pinned) {
+          it.remove()
+          retained -= e.getValue.bytes
+          evicted += e.getKey
+          victims += e.getKey
+        }
+      }
+      victims.toList
+    }
+  }
+
+  def size: Int           = loaded.size
+  def retainedBytes: Long = retained
+  def pinned: Set[EnsimeFile] = loaded.asScala.collect {
+    case (f, u) if u.pinned => f
+  }(collection.breakOut)
+}
+
+private[core] object LoadedUnits {
+  // what the compiler retains for every character of source, very roughly
+  val BytesPerChar: Long = 100L
+
+  private final case class Loaded(chars: Long, pinned: Boolean) {
+    def bytes: Long = chars * BytesPerChar
+  }
+}
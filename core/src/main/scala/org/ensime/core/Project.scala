@@ -2,7 +2,7 @@
 // License: http://www.gnu.org/licenses/gpl-3.0.en.html
 package org.ensime.core
 
-import scala.concurrent.Await
+import scala.concurrent.{ Await, Future }
 import scala.concurrent.duration._
 import scala.util._
 
@@ -12,6 +12,7 @@ import org.ensime.api._
 import org.ensime.config.richconfig._
 import org.ensime.indexer._
 import org.ensime.util.{ Debouncer, Timing }
+import org.ensime.util.file._
 import org.ensime.vfs._
 
 final case class ShutdownRequest(reason: String, isError: Boolean = false)
@@ -45,6 +46,28 @@ class Project(
   private var dependentProjects: Map[EnsimeProjectId, List[EnsimeProjectId]] = _
 
   private val reTypecheck = new FileChangeListener {
+    // classpath entries with changes, per project, awaiting the debouncer
+    private var changedEntries = Map.empty[EnsimeProjectId, Set[File]]
+
+    private val askInvalidate: Map[EnsimeProjectId, Debouncer] =
+      config.projects.map { p =>
+        import context.dispatcher
+        p.id -> Debouncer(
+          s"invalidate ${p.id}",
+          system.scheduler,
+          delay = (5 * Timing.dilation).seconds,
+          maxDelay = (20 * Timing.dilation).seconds
+        ) { () =>
+          val entries = synchronized {
+            val pending = changedEntries.getOrElse(p.id, Set.empty[File])
+            changedEntries -= p.id
+            pending
+          }
+          if (entries.nonEmpty)
+            self ! Analyzer.ClasspathChanged(p.id, entries)
+        }
+      }(collection.breakOut)
+
     private val askReTypeCheck: Map[EnsimeProjectId, Debouncer] =
       config.projects.map(
         p =>
@@ -55,17 +78,49 @@ class Project(
             maxDelay = (20 * Timing.dilation).seconds
         )
       )(collection.breakOut)
-    def fileChanged(f: FileObject): Unit = {
-      val projectId = config.findProject(f)
-      projectId foreach { projectId =>
-        (projectId :: dependentProjects.getOrElse(projectId, Nil))
-          .foreach(askReTypeCheck.get(_).foreach(_.call()))
-      }
-    }
+
+    // the output directory or jar that contains the file
+    private def classpathEntry(projectId: EnsimeProjectId,
+                               f: FileObject): Option[File] =
+      config
+        .lookup(projectId)
+        .targets
+        .map(_.file.toFile)
+        .find(t => f.getName isAncestor vfs.vfile(t).getName)
+
+    def fileChanged(f: FileObject): Unit =
+      filesChanged(Nil, List(f), Nil)
     def fileAdded(f: FileObject): Unit =
       fileChanged(f)
     def fileRemoved(f: FileObject): Unit =
       fileChanged(f)
+
+    // the lock and each debouncer are taken once for a whole batch
+    override def filesChanged(added: Seq[FileObject],
+                              changed: Seq[FileObject],
+                              removed: Seq[FileObject]): Unit = {
+      val touched = for {
+        f         <- added ++ changed ++ removed
+        projectId <- config.findProject(f).toList
+        entry     = classpathEntry(projectId, f)
+        id        <- projectId :: dependentProjects.getOrElse(projectId, Nil)
+      } yield id -> entry
+      val entries = touched.collect { case (id, Some(e)) => id -> e }
+      if (entries.nonEmpty) synchronized {
+        entries.foreach {
+          case (id, e) =>
+            changedEntries +=
+              id -> (changedEntries.getOrElse(id, Set.empty[File]) + e)
+        }
+      }
+      entries.map(_._1).distinct.foreach { id =>
+        askInvalidate.get(id).foreach(_.call())
+      }
+      touched.collect { case (id, None) => id }.distinct.foreach { id =>
+        askReTypeCheck.get(id).foreach(_.call())
+      }
+    }
+    // the whole output directory was replaced, nothing to salvage
     override def baseReCreated(f: FileObject): Unit =
       askReTypeCheck.values.foreach(_.call())
   }
@@ -78,14 +133,31 @@ class Project(
     dependentProjects = config.projects.map(
       p => p.id -> config.projects.filter(_.depends.contains(p.id)).map(_.id)
     )(collection.breakOut)
+    searchService.memory.onChange { (pressure, usedMb, maxMb) =>
+      broadcaster ! HeapPressureEvent(pressure, usedMb, maxMb)
+    }
     searchService
-      .refresh()
+      .refresh { tier =>
+        broadcaster ! Broadcaster.Persist(IndexerTierReadyEvent(tier))
+      }
       .onComplete {
         case Success((deletes, inserts)) =>
           broadcaster ! Broadcaster.Persist(IndexerReadyEvent)
           log.debug(s"created $inserts and removed $deletes searchable rows")
-          if (serverConfig.exitAfterIndex)
-            context.parent ! ShutdownRequest("Index only run", isError = false)
+          if (serverConfig.exitAfterIndex) {
+            val parent = context.parent
+            val exported = serverConfig.indexSnapshot match {
+              case Some(snapshot) =>
+                searchService.exportSnapshot(snapshot.file.toFile)
+              case None => Future.successful(())
+            }
+            exported.onComplete {
+              case Success(_) =>
+                parent ! ShutdownRequest("Index only run", isError = false)
+              case Failure(e) =>
+                parent ! ShutdownRequest(s"Snapshot failed: $e", isError = true)
+            }(context.dispatcher)
+          }
         case Failure(problem) =>
           log.warning(s"Refresh failed: ${problem.toString}")
           throw problem
@@ -121,6 +193,7 @@ class Project(
   def receive: Receive = {
     case ShutdownRequest                     => context.parent forward ShutdownRequest
     case req @ RestartScalaCompilerReq(_, _) => scalac forward req
+    case req: Analyzer.ClasspathChanged      => scalac forward req
     case m: RpcAnalyserRequest               => scalac forward m
     case m: RpcSearchRequest                 => indexer forward m
     case m: DocSigPair                       => docs forward m
@@ -29,7 +29,11 @@ abstract class RefactoringEnvironment(file: String, start: Int, end: Int) {
     procId: Int,
     tpe: RefactorType,
     parameters: refactoring.RefactoringParameters
-  )(implicit charset: Charset): Either[RefactorFailure, RefactorDiffEffect] = {
+  )(
+    implicit
+    charset: Charset,
+    ec: ExecutionContext
+  ): Either[RefactorFailure, RefactorDiffEffect] = {
 
     def transformToDiff(
       modifications: List[Change]
@@ -126,13 +130,14 @@ trait RefactoringImpl {
                          files: Set[String]) =
     new RefactoringEnvironment(file.getPath, start, end) {
       val refactoring = new Rename with GlobalIndexes {
-        val global = RefactoringImpl.this
-        val cuIndexes: List[CompilationUnitIndex] =
+        val global: RefactoringImpl.this.type = RefactoringImpl.this
+        val cuIndexes = this.global.occurrenceIndexes(this)(
           this.global.unitOfFile.collect {
             case (f, unit)
                 if search.noReverseLookups || files.contains(f.file.getPath) =>
-              CompilationUnitIndex(unit.body)
-          }(collection.breakOut)
+              unit
+          }
+        )
         val index = GlobalIndex(cuIndexes)
       }
       val result = performRefactoring(procId, tpe, name)
@@ -146,10 +151,9 @@ trait RefactoringImpl {
                                 end: Int) =
     new RefactoringEnvironment(file.getPath, start, end) {
       val refactoring = new ExtractMethod with GlobalIndexes {
-        val global = RefactoringImpl.this
-        val cuIndexes = this.global.activeUnits().map { u =>
-          CompilationUnitIndex(u.body)
-        }
+        val global: RefactoringImpl.this.type = RefactoringImpl.this
+        val cuIndexes =
+          this.global.occurrenceIndexes(this)(this.global.activeUnits())
         val index = GlobalIndex(cuIndexes)
       }
       val result = performRefactoring(procId, tpe, name)
@@ -163,10 +167,9 @@ trait RefactoringImpl {
                                end: Int) =
     new RefactoringEnvironment(file.getPath, start, end) {
       val refactoring = new ExtractLocal with GlobalIndexes {
-        val global = RefactoringImpl.this
-        val cuIndexes = this.global.activeUnits().map { u =>
-          CompilationUnitIndex(u.body)
-        }
+        val global: RefactoringImpl.this.type = RefactoringImpl.this
+        val cuIndexes =
+          this.global.occurrenceIndexes(this)(this.global.activeUnits())
         val index = GlobalIndex(cuIndexes)
       }
       val result = performRefactoring(procId, tpe, name)
@@ -179,10 +182,9 @@ trait RefactoringImpl {
                               end: Int) =
     new RefactoringEnvironment(file.getPath, start, end) {
       val refactoring = new InlineLocal with GlobalIndexes {
-        val global = RefactoringImpl.this
-        val cuIndexes = this.global.activeUnits().map { u =>
-          CompilationUnitIndex(u.body)
-        }
+        val global: RefactoringImpl.this.type = RefactoringImpl.this
+        val cuIndexes =
+          this.global.occurrenceIndexes(this)(this.global.activeUnits())
         val index = GlobalIndex(cuIndexes)
       }
       val result =
@@ -226,7 +228,7 @@ trait RefactoringImpl {
     val modifications = refactoring.addImport(af, qualName)
     val edits         = modifications.flatMap(FileEditHelper.fromChange)
 
-    writeDiffChanges(edits)(charset) match {
+    writeDiffChanges(edits)(charset, ec) match {
       case Right(diff) => Right(RefactorDiffEffect(procId, tpe, diff))
       case Left(err)   => Left(RefactorFailure(procId, err.toString))
     }
@@ -241,10 +243,9 @@ trait RefactoringImpl {
   ): Either[RefactorFailure, RefactorDiffEffect] =
     new RefactoringEnvironment(file.getPath, start, end) {
       val refactoring = new ExpandMatchCases with GlobalIndexes {
-        val global = RefactoringImpl.this
-        val cuIndexes = this.global.activeUnits().map { u =>
-          CompilationUnitIndex(u.body)
-        }
+        val global: RefactoringImpl.this.type = RefactoringImpl.this
+        val cuIndexes =
+          this.global.occurrenceIndexes(this)(this.global.activeUnits())
         val index = GlobalIndex(cuIndexes)
       }
       val result = performRefactoring(procId, tpe, ())
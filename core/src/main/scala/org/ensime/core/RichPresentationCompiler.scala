@@ -251,6 +251,24 @@ trait RichCompilerControl
 
   def askNotifyWhenReady(): Unit = ask(setNotifyWhenReady _)
 
+  /**
+   * Rescans the given classpath entries (output directories or jars)
+   * in place, replacing the contents of their packages, which is far
+   * cheaper than a restart that reloads the whole classpath. Returns
+   * `false` if the compiler could not be updated, e.g. because an entry
+   * is not on its classpath (which scalac only logs).
+   */
+  def askInvalidateClasspath(entries: List[File]): Boolean =
+    askOption {
+      val known = classPath.asURLs.flatMap { url =>
+        scala.util.Try(new File(url.toURI).getCanonicalPath).toOption
+      }.toSet
+      entries.forall(e => known(e.getCanonicalPath)) && {
+        invalidateClassPathEntries(entries.map(_.getPath): _*)
+        true
+      }
+    }.getOrElse(false)
+
   // WARNING: be really careful when creating BatchSourceFiles. there
   // are multiple constructors which do weird things, best to be very
   // explicit about what we're doing and only use the primary
@@ -355,7 +373,7 @@ class RichPresentationCompiler(
       }
     }
 
-  def activeUnits(): List[CompilationUnit] = {
+  def activeUnits(): List[RichCompilationUnit] = {
     val invalidSet = toBeRemoved.synchronized { toBeRemoved.toSet }
     unitOfFile.filter { kv =>
       !invalidSet.contains(kv._1)
@@ -382,6 +400,8 @@ class RichPresentationCompiler(
         symsByFile.remove(af)
         unitOfFile.remove(af)
       }
+      unitIndexes.remove(f.file)
+      designationsByFile.remove(f.file)
     }
 
   private def typePublicMembers(tpe: Type): Iterable[TypeMember] = {
@@ -528,16 +548,19 @@ class RichPresentationCompiler(
     symbolAt(pos) match {
       case Some(s) =>
         class CompilerGlobalIndexes extends GlobalIndexes {
-          val global = RichPresentationCompiler.this
-          val sym    = s.asInstanceOf[global.Symbol]
-          val cuIndexes = this.global.unitOfFile.collect {
-            case (file, unit)
-                if search.noReverseLookups || files.contains(
-                  file.file.toPath
-                ) =>
-              CompilationUnitIndex(unit.body)
-          }
-          val index = GlobalIndex(cuIndexes.toList)
+          val global: RichPresentationCompiler.this.type =
+            RichPresentationCompiler.this
+          val sym = s
+          val cuIndexes = this.global.occurrenceIndexes(this)(
+            this.global.unitOfFile.collect {
+              case (file, unit)
+                  if search.noReverseLookups || files.contains(
+                    file.file.toPath
+                  ) =>
+                unit
+            }
+          )
+          val index = GlobalIndex(cuIndexes)
           val result = index.occurences(sym).map { r =>
             r.pos match {
               case p: RangePosition => p
@@ -556,6 +579,58 @@ class RichPresentationCompiler(
       case None => Nil
     }
 
+  /**
+   * Owns the cached occurrence indexes, which are independent of the
+   * refactoring or search that first asked for them.
+   */
+  private[core] object unitIndexer extends GlobalIndexes {
+    val global: RichPresentationCompiler.this.type =
+      RichPresentationCompiler.this
+    val index = GlobalIndex(List.empty[CompilationUnitIndex])
+  }
+
+  // only accessed on the compiler thread
+  private val unitIndexes =
+    new mutable.HashMap[AbstractFile,
+                        (Tree, Int, unitIndexer.CompilationUnitIndex)]
+
+  /**
+   * The occurrence index of each unit, rebuilding only those whose
+   * typed tree has changed since they were last indexed. Indexing
+   * every loaded unit is expensive, so repeated usage searches and
+   * renames would otherwise be dominated by it.
+   *
+   * The cached indexes are views of `indexes`, whose `global` must be
+   * this compiler, so that their trees and symbols are ours.
+   */
+  private[core] def occurrenceIndexes(
+    indexes: GlobalIndexes { val global: RichPresentationCompiler.this.type }
+  )(
+    units: Iterable[RichCompilationUnit]
+  ): List[indexes.CompilationUnitIndex] = {
+    unitIndexes.retain((file, _) => unitOfFile.contains(file))
+    units.map { unit =>
+      val cached = unitIndexes.get(unit.source.file) match {
+        case Some((body, status, index))
+            if (body eq unit.body) && status == unit.status =>
+          index
+        case _ =>
+          val index = unitIndexer.CompilationUnitIndex(unit.body)
+          unitIndexes(unit.source.file) = (unit.body, unit.status, index)
+          index
+      }
+      new indexes.CompilationUnitIndex {
+        def root        = cached.root
+        def definitions = cached.definitions
+        def references  = cached.references
+      }
+    }(collection.breakOut)
+  }
+
+  // compiler thread only, see SemanticHighlighting
+  private[core] val designationsByFile =
+    new mutable.HashMap[AbstractFile, SemanticHighlighting.UnitDesignations]
+
   private var notifyWhenReady = false
 
   override def isOutOfDate: Boolean = {
@@ -576,8 +651,11 @@ class RichPresentationCompiler(
     }
   }
 
-  override def askShutdown(): Unit =
+  override def askShutdown(): Unit = {
+    logger.info(modelMetrics.summary)
+    logger.info(scalaNameMetrics.summary)
     super.askShutdown()
+  }
 
   /*
    * The following functions wrap up operations that interact with
@@ -0,0 +1,265 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import java.io.{ BufferedWriter, IOException }
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file._
+import java.util.concurrent.{ LinkedBlockingQueue, TimeUnit }
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+import akka.event.slf4j.SLF4JLogging
+import spray.json._
+import org.ensime.api._
+
+/**
+ * Records the requests of every client, in the order they arrived, so
+ * that an editing session can be replayed later (e.g. by a load test)
+ * against another copy of the project.
+ *
+ * A trace is a text file of json lines: a header with the root of the
+ * project, then a line for every request when it arrives, with the
+ * millis since the trace was started, the client that sent it and the
+ * request (in the same form as jerky). Requests that are answered get
+ * a second line, with the latency and error of the response, so that
+ * requests that were never answered are in the trace too. File names
+ * below the root are rebased when the trace is read.
+ *
+ * Lines are written by a thread of their own, never by the caller. At
+ * most `MaxPending` lines wait for it: beyond that, or once it has
+ * failed, lines are dropped (and counted) rather than held in memory.
+ *
+ * Thread safe: one trace is shared by all the clients of a server.
+ */
+final class RpcTrace private (out: BufferedWriter) extends SLF4JLogging {
+  import RpcTrace._
+
+  private[this] val started = System.nanoTime()
+  private[this] val calls   = new AtomicLong
+  private[this] val dropped = new AtomicLong
+  // None when closed
+  private[this] val lines = new LinkedBlockingQueue[Option[String]](MaxPending)
+  @volatile private[this] var failed = false
+
+  private[this] val writer = new Thread("ensime-rpc-trace") {
+    override def run(): Unit =
+      try {
+        var open = true
+        while (open) {
+          val batch = new java.util.ArrayList[Option[String]]
+          batch.add(lines.take())
+          lines.drainTo(batch)
+          batch.asScala.foreach {
+            case Some(line) =>
+              out.write(line)
+              out.newLine()
+            case None => open = false
+          }
+          out.flush()
+        }
+      } catch {
+        case NonFatal(e) =>
+          failed = true
+          lines.clear()
+          log.warn("could not record requests", e)
+      } finally out.close()
+  }
+  writer.setDaemon(true)
+  writer.start()
+
+  /** Records a request as it arrives, whether or not it is answered. */
+  def arrived(session: String, req: RpcRequest): Call = {
+    val call = Call(calls.incrementAndGet(), System.nanoTime())
+    val entry =
+      Entry((call.arrived - started) / 1000000, session, req, None, None)
+    record(CompactPrinter(writeEntry(entry, Some(call.id))))
+    call
+  }
+
+  def answered(call: Call, response: RpcResponse): Unit = {
+    val latency = (System.nanoTime() - call.arrived) / 1000000
+    val error = response match {
+      case EnsimeServerError(description) => Some(description)
+      case _                              => None
+    }
+    record(CompactPrinter(writeAnswer(call.id, latency, error)))
+  }
+
+  private[this] def record(line: String): Unit =
+    if (failed || !lines.offer(Some(line))) {
+      if (dropped.incrementAndGet() == 1 && !failed)
+        log.warn("the trace is falling behind, dropping requests")
+    }
+
+  /** Writes what is left. */
+  def close(): Unit = {
+    if (lines.offer(None, 10, TimeUnit.SECONDS)) writer.join(10000)
+    if (dropped.get > 0) log.warn(s"${dropped.get} lines were not recorded")
+  }
+}
+
+object RpcTrace extends SLF4JLogging {
+  import JsReader.ops._
+  import JsWriter.ops._
+
+  // 1 had the latency and error on the request's line
+  private val Format  = 2
+  // lines waiting to be written
+  private val MaxPending = 10000
+  private val Formats = Set[JsValue](JsNumber(1), JsNumber(Format))
+
+  /** A request that was recorded, to be `answered`. */
+  final case class Call(id: Long, arrived: Long)
+
+  /**
+   * @param at millis since the trace was started.
+   * @param latency millis until the response, if it was seen.
+   */
+  final case class Entry(
+    at: Long,
+    session: String,
+    req: RpcRequest,
+    latency: Option[Long],
+    error: Option[String]
+  ) {
+    def requestType: String = RpcTrace.requestType(req)
+  }
+
+  def requestType(req: RpcRequest): String = req.getClass.getSimpleName
+
+  /** A new trace, if one is configured, replacing any earlier trace. */
+  def forConfig(
+    implicit
+    config: EnsimeConfig,
+    serverConfig: EnsimeServerConfig
+  ): Option[RpcTrace] = serverConfig.trace.flatMap { trace =>
+    try {
+      Option(trace.file.toAbsolutePath.getParent)
+        .foreach(Files.createDirectories(_))
+      val out = Files.newBufferedWriter(trace.file, UTF_8)
+      out.write(CompactPrinter(header(config.rootDir.file)))
+      out.newLine()
+      out.flush()
+      log.info(s"recording requests to ${trace.file}")
+      Some(new RpcTrace(out))
+    } catch {
+      case NonFatal(e) =>
+        log.warn(s"could not record requests to ${trace.file}", e)
+        None
+    }
+  }
+
+  /**
+   * The entries of a trace, ordered by arrival, with the files below
+   * the recorded root moved below `root`.
+   */
+  def read(trace: Path, root: Path): List[Entry] =
+    Files.readAllLines(trace, UTF_8).asScala.toList.filter(_.nonEmpty) match {
+      case Nil => Nil
+      case header :: lines =>
+        val recorded = JsParser(header) match {
+          case JsObject(fields)
+              if fields.get("format").exists(Formats.contains) =>
+            fields.get("root").collect { case JsString(r) => r }
+          case _ => throw new IOException(s"$trace is not a request trace")
+        }
+        val rebase: JsValue => JsValue = recorded match {
+          case Some(from) => rebaseFiles(from, root.toString)
+          case None       => identity
+        }
+        val (answers, requests) = lines.map(JsParser(_)).partition {
+          case JsObject(fields) => fields.contains("answers")
+          case _                => false
+        }
+        val answered = answers.map(readAnswer).toMap
+        requests.map { json =>
+          val (id, entry) = readEntry(rebase(json))
+          id.flatMap(answered.get) match {
+            case Some((latency, error)) =>
+              entry.copy(latency = Some(latency), error = error)
+            case None => entry
+          }
+        }.sortBy(_.at)
+    }
+
+  private[core] def header(root: Path): JsValue =
+    JsObject(
+      "format" -> JsNumber(Format),
+      "root"   -> JsString(root.toString)
+    )
+
+  private[core] def writeEntry(e: Entry, id: Option[Long] = None): JsValue =
+    JsObject(
+      List(
+        id.map(i => "id" -> JsNumber(i)),
+        Some("at"      -> JsNumber(e.at)),
+        Some("session" -> JsString(e.session)),
+        Some("req"     -> e.req.toJson),
+        e.latency.map(l => "latency" -> JsNumber(l)),
+        e.error.map(err => "error" -> JsString(err))
+      ).flatten.toMap
+    )
+
+  private[core] def writeAnswer(id: Long,
+                                latency: Long,
+                                error: Option[String]): JsValue =
+    JsObject(
+      List(
+        Some("answers" -> JsNumber(id)),
+        Some("latency" -> JsNumber(latency)),
+        error.map(err => "error" -> JsString(err))
+      ).flatten.toMap
+    )
+
+  // (call id, latency, error)
+  private def readAnswer(json: JsValue): (Long, (Long, Option[String])) =
+    json match {
+      case JsObject(fields) =>
+        (fields.get("answers"), fields.get("latency")) match {
+          case (Some(JsNumber(id)), Some(JsNumber(latency))) =>
+            (id.toLong,
+             (latency.toLong, fields.get("error").collect {
+               case JsString(s) => s
+             }))
+          case _ => throw new IOException(s"not an answer: $json")
+        }
+      case other => throw new IOException(s"not an answer: $other")
+    }
+
+  // (call id, entry)
+  private[core] def readEntry(json: JsValue): (Option[Long], Entry) =
+    json match {
+      case JsObject(fields) =>
+        def long(key: String): Option[Long] = fields.get(key).collect {
+          case JsNumber(n) => n.toLong
+        }
+        val req = fields.get("req").map(_.as[RpcRequest]) match {
+          case Some(Right(r))  => r
+          case Some(Left(err)) => throw new IOException(err.msg, err.cause)
+          case None            => throw new IOException(s"no request in $json")
+        }
+        val entry = Entry(
+          long("at").getOrElse(0L),
+          fields.get("session").collect { case JsString(s) => s }.getOrElse(""),
+          req,
+          long("latency"),
+          fields.get("error").collect { case JsString(s) => s }
+        )
+        (long("id"), entry)
+      case other => throw new IOException(s"not a trace entry: $other")
+    }
+
+  private def rebaseFiles(from: String, to: String)(json: JsValue): JsValue =
+    json match {
+      case JsString(s)
+          if s == from || s.startsWith(from + java.io.File.separator) =>
+        JsString(to + s.substring(from.length))
+      case JsArray(elements) => JsArray(elements.map(rebaseFiles(from, to)))
+      case JsObject(fields) =>
+        JsObject(fields.map { case (k, v) => k -> rebaseFiles(from, to)(v) })
+      case other => other
+    }
+}
@@ -7,7 +7,7 @@ import java.io.File
 import org.slf4j.LoggerFactory
 
 import scala.collection.mutable.ListBuffer
-import scala.reflect.internal.util.RangePosition
+import scala.reflect.internal.util.{ RangePosition, SourceFile }
 import scala.reflect.io.AbstractFile
 import scala.tools.nsc.symtab.Flags._
 import scala.tools.refactoring.common.{ CompilerAccess, EnrichedTrees }
@@ -178,17 +178,75 @@ class SemanticHighlighting(val global: RichPresentationCompiler)
 
     typed.get.left.toOption match {
       case Some(tree) =>
-        val traverser = new SymDesigsTraverser(p, requestedTypes.toSet)
-        traverser.traverse(tree)
         logger.info(s"RANGE POSITION  === $p ${p.source.file.getClass}")
-        SymbolDesignations(EnsimeFile(p.source.file.path),
-                           traverser.syms.toList)
+        val requested = requestedTypes.toSet
+        val syms = designations(p.source, tree).filter { sym =>
+          requested(sym.symType) && sym.start <= p.end && p.start <= sym.end
+        }
+        SymbolDesignations(EnsimeFile(p.source.file.path), syms)
       case None =>
         SymbolDesignations(EnsimeFile(new File(".")), List.empty)
     }
   }
 
+  /**
+   * All the designations of a unit, which are cached for as long as
+   * the unit has the same typed tree.
+   *
+   * When the unit is re-typed, they are reused if its source is
+   * unchanged and no other unit was reloaded in the meantime, since
+   * that may change what it refers to. Any edit to the unit traverses
+   * all of it again: an edit to one definition can change what the
+   * others resolve to.
+   */
+  private def designations(
+    source: SourceFile,
+    tree: Tree
+  ): List[SymbolDesignation] = {
+    import SemanticHighlighting._
+
+    val file   = source.file
+    val status = unitOfFile.get(file).map(_.status).getOrElse(NoRunId)
+    val others: Map[AbstractFile, SourceFile] = unitOfFile.collect {
+      case (f, u) if f != file => f -> u.source
+    }(collection.breakOut)
+    val cached = designationsByFile.get(file).filter { c =>
+      c.others.size == others.size && c.others.forall {
+        case (f, s) => others.get(f).exists(_ eq s)
+      }
+    }
+
+    cached match {
+      case Some(c) if (c.body eq tree) && c.status == status => c.syms
+      case Some(c) if java.util.Arrays.equals(c.content, source.content) =>
+        designationsByFile(file) = c.copy(body = tree, status = status)
+        c.syms
+      case _ =>
+        val traverser = new SymDesigsTraverser(
+          new RangePosition(source, 0, 0, source.length),
+          SourceSymbol.allSymbols.toSet
+        )
+        traverser.traverse(tree)
+        val syms = traverser.syms.toList
+        designationsByFile(file) =
+          UnitDesignations(tree, status, others, source.content, syms)
+        syms
+    }
+  }
+
   def compilationUnitOfFile(f: AbstractFile): Option[CompilationUnit] =
     unitOfFile.get(f)
 
 }
+
+object SemanticHighlighting {
+
+  /** The designations of a unit, and the source they were made from. */
+  final case class UnitDesignations(
+    body: AnyRef,
+    status: Int,
+    others: Map[AbstractFile, SourceFile],
+    content: Array[Char],
+    syms: List[SymbolDesignation]
+  )
+}
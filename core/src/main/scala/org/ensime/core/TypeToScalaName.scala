@@ -4,6 +4,8 @@ package org.ensime.core
 
 import scala.tools.nsc.interactive.Global
 
+import org.ensime.util.{ Metrics, RunMemo }
+
 /**
  * Type safety around Scala type names, scalac uses raw Strings.
  */
@@ -16,9 +18,21 @@ final class ScalaName(val underlying: String) extends AnyVal {
 trait TypeToScalaName { self: Global with Helpers =>
   import definitions._
 
+  // the same few types are rendered for every completion and type query
+  private[this] val scalaNames = new RunMemo("ScalaNames", 4096)
+
+  def scalaNameMetrics: Metrics = scalaNames.metrics
+
   def scalaName(tpe: Type,
                 full: Boolean,
-                shouldDealias: Boolean = true): ScalaName = {
+                shouldDealias: Boolean = true): ScalaName =
+    scalaNames(currentRunId, (tpe, full, shouldDealias)) {
+      renderScalaName(tpe, full, shouldDealias)
+    }
+
+  private def renderScalaName(tpe: Type,
+                              full: Boolean,
+                              shouldDealias: Boolean): ScalaName = {
     val typeSymbol = if (shouldDealias) tpe.typeSymbol else tpe.typeSymbolDirect
 
     tpe match {
@@ -0,0 +1,155 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.filewatcher
+
+import java.io.File
+import java.util.concurrent.{
+  Executors,
+  ScheduledExecutorService,
+  ThreadFactory,
+  TimeUnit
+}
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+import scala.util.control.NonFatal
+
+import org.slf4j.LoggerFactory
+
+/**
+ * The net effect of one or more raw WatchService events on a single
+ * path, as seen by a listener.
+ */
+sealed trait FileChange {
+  def file: File
+}
+object FileChange {
+  final case class Added(file: File)   extends FileChange
+  final case class Changed(file: File) extends FileChange
+  final case class Removed(file: File) extends FileChange
+}
+
+/**
+ * Collapses bursts of CREATE / MODIFY / DELETE events per listener
+ * and path into a single net change, delivering batches to
+ * `WatcherListener.filesChanged` on a dedicated dispatch thread so
+ * that the monitor thread never runs listener code.
+ *
+ * Lifecycle notifications (base registered / removed, etc) are
+ * dispatched via `dispatch`, which flushes pending changes first so
+ * that listeners observe events in the order they were raised.
+ */
+private[filewatcher] class FileEventCoalescer(window: FiniteDuration) {
+  import FileChange._
+  import FileEventCoalescer.merge
+
+  private val log = LoggerFactory.getLogger(getClass)
+
+  private val dispatcher: ScheduledExecutorService =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, "FileWatchService-dispatch")
+        t.setDaemon(true)
+        t
+      }
+    })
+
+  // guarded by `this`
+  private val pending =
+    mutable.LinkedHashMap[WatcherListener, mutable.LinkedHashMap[File, FileChange]]()
+  private var scheduled = false
+
+  def created(l: WatcherListener, f: File): Unit  = record(l, Added(f))
+  def modified(l: WatcherListener, f: File): Unit = record(l, Changed(f))
+  def deleted(l: WatcherListener, f: File): Unit  = record(l, Removed(f))
+
+  /** Run a lifecycle callback after everything already recorded. */
+  def dispatch(action: => Unit): Unit = {
+    val batches = drain()
+    submit {
+      deliver(batches)
+      action
+    }
+  }
+
+  def shutdown(): Unit = {
+    val batches = drain()
+    submit(deliver(batches))
+    dispatcher.shutdown()
+  }
+
+  private def record(l: WatcherListener, change: FileChange): Unit =
+    synchronized {
+      val changes = pending.getOrElseUpdate(l, mutable.LinkedHashMap())
+      merge(changes.get(change.file), change) match {
+        case Some(net) => changes(change.file) = net
+        case None      => changes -= change.file
+      }
+      if (!scheduled) {
+        scheduled = true
+        schedule()
+      }
+    }
+
+  private def schedule(): Unit =
+    try {
+      dispatcher.schedule(
+        new Runnable {
+          override def run(): Unit = deliver(drain())
+        },
+        window.toMillis,
+        TimeUnit.MILLISECONDS
+      )
+    } catch {
+      case NonFatal(e) => log.debug("file event dispatch is shut down", e)
+    }
+
+  private def drain(): Seq[(WatcherListener, Seq[FileChange])] = synchronized {
+    scheduled = false
+    val batches = pending.toList.collect {
+      case (l, changes) if changes.nonEmpty => (l, changes.values.toList)
+    }
+    pending.clear()
+    batches
+  }
+
+  private def submit(action: => Unit): Unit =
+    try {
+      dispatcher.execute(new Runnable {
+        override def run(): Unit = action
+      })
+    } catch {
+      case NonFatal(e) => log.debug("file event dispatch is shut down", e)
+    }
+
+  private def deliver(batches: Seq[(WatcherListener, Seq[FileChange])]): Unit =
+    batches.foreach {
+      case (l, changes) =>
+        try l.filesChanged(changes)
+        catch {
+          case NonFatal(e) =>
+            log.warn(s"listener failed on ${changes.size} changes", e)
+        }
+    }
+}
+
+private[filewatcher] object FileEventCoalescer {
+  import FileChange._
+
+  /**
+   * The net change of `next` following `previous`, or `None` if they
+   * cancel out (i.e. a file that was created and deleted in the
+   * same window).
+   */
+  def merge(previous: Option[FileChange],
+            next: FileChange): Option[FileChange] =
+    (previous, next) match {
+      case (None, n)                      => Some(n)
+      case (Some(_: Added), _: Removed)   => None
+      case (Some(a: Added), _)            => Some(a)
+      case (Some(_: Changed), r: Removed) => Some(r)
+      case (Some(c: Changed), _)          => Some(c)
+      case (Some(_: Removed), r: Removed) => Some(r)
+      case (Some(_: Removed), n)          => Some(Changed(n.file))
+    }
+}
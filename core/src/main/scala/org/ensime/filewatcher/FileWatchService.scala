@@ -10,11 +10,13 @@ import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 
 import com.sun.nio.file.SensitivityWatchEventModifier
+import org.ensime.io.Canon
 
 import scala.annotation.tailrec
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.Map
 import scala.collection.immutable.Set
+import scala.concurrent.duration._
 import scala.language.implicitConversions
 import scala.util.control.NonFatal
 import scala.util.{ Failure, Properties, Success, Try }
@@ -55,6 +57,17 @@ trait WatcherListener {
 
   def existingFile(@deprecated("local", "") f: File): Unit = {}
 
+  /**
+   * Receives the net changes of a coalescing window. Override to
+   * process changes in bulk, otherwise they are delivered one by one.
+   */
+  def filesChanged(changes: Seq[FileChange]): Unit =
+    changes.foreach {
+      case FileChange.Added(f)   => fileCreated(f)
+      case FileChange.Changed(f) => fileModified(f)
+      case FileChange.Removed(f) => fileDeleted(f)
+    }
+
   def isWatched(f: File) =
     (extensions.exists(e => {
       f.getName.endsWith(e)
@@ -65,9 +78,15 @@ trait WatcherListener {
 }
 
 // tested in FileWatcherSpec
-class FileWatchService { self =>
+class FileWatchService(coalesceWindow: FiniteDuration = 50.millis) { self =>
   private val log = LoggerFactory.getLogger(getClass)
 
+  /**
+   * All listener callbacks go through here, keeping them off the
+   * monitor thread.
+   */
+  private[filewatcher] val events = new FileEventCoalescer(coalesceWindow)
+
   /**
    * The low priority thread used for checking the files being monitored.
    */
@@ -149,20 +168,33 @@ class FileWatchService { self =>
         log.error(s"failed to watch ${file}")
     }
 
-  def notifyExisting(dir: File, listeners: Set[WatcherListener]) =
-    for {
-      f <- dir.listFiles
+  def notifyExisting(dir: File, listeners: Set[WatcherListener]): Unit =
+    notifyExisting(listChildren(dir), listeners)
+
+  def watchExistingSubdirs(dir: File, listeners: Set[WatcherListener]): Unit =
+    watchExistingSubdirs(listChildren(dir), listeners)
+
+  private def listChildren(dir: File): Array[File] =
+    Option(dir.listFiles).getOrElse(Array.empty)
+
+  private def notifyExisting(children: Array[File],
+                             listeners: Set[WatcherListener]): Unit = {
+    val existing = for {
+      f <- children
       if f.isFile
       l <- listeners
       if l.isWatched(f)
-    } { l.existingFile(f) }
+    } yield (l, f)
+    if (existing.nonEmpty)
+      events.dispatch(existing.foreach { case (l, f) => l.existingFile(f) })
+  }
 
-  def watchExistingSubdirs(dir: File, listeners: Set[WatcherListener]) =
+  private def watchExistingSubdirs(children: Array[File],
+                                   listeners: Set[WatcherListener]): Unit =
     if (listeners.exists(_.recursive))
       for {
-        d <- dir.listFiles
+        d <- children
         if d.isDirectory
-        l <- listeners
       } { watch(d, listeners, false) }
 
   def registerDir(dir: File,
@@ -182,10 +214,10 @@ class FileWatchService { self =>
       log.trace(s"register ${dir} with WatchService")
     if (!observers.isEmpty) {
       val key: WatchKey = try {
-        val events: Array[WatchEvent.Kind[_]] =
+        val kinds: Array[WatchEvent.Kind[_]] =
           Array(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE)
         dir.toPath.register(watchService,
-                            events,
+                            kinds,
                             SensitivityWatchEventModifier.HIGH)
       } catch {
         case e: Throwable => {
@@ -198,16 +230,17 @@ class FileWatchService { self =>
         }
       }
 
-      notifyExisting(dir, listeners)
+      val children = listChildren(dir)
+      notifyExisting(children, listeners)
       if (observers.exists {
             case _: BaseObserver       => true
             case _: BaseSubdirObserver => true
             case _: BaseFileObserver   => true
             case _                     => false
           })
-        watchExistingSubdirs(dir, listeners)
+        watchExistingSubdirs(children, listeners)
 
-      observers foreach {
+      events.dispatch(observers foreach {
         case o: BaseObserver =>
           if (wasMissing)
             o.watcherListener.missingBaseRegistered()
@@ -222,11 +255,11 @@ class FileWatchService { self =>
           o.watcherListener.baseSubdirRegistered(dir)
 
         case o: ProxyObserver => o.watcherListener.proxyRegistered(dir)
-      }
+      })
 
       observers foreach (WatchKeyManager.addObserver(key, _))
       if (WatchKeyManager.hasProxy(key))
-        dir.listFiles
+        listChildren(dir)
           .filter(f => (f.isDirectory || f.isFile))
           .foreach(WatchKeyManager.maybeAdvanceProxy(key, _))
 
@@ -243,11 +276,14 @@ class FileWatchService { self =>
       Try { watchService.take() } match {
         case Success(key) => {
           if (WatchKeyManager.contains(key)) {
-            processEvents(key)
-            val isWindows = Properties.osName.startsWith("Windows")
-            // can not recover reliably from deleted base without delay
-            if (isWindows) Thread.sleep(1000)
-            else Thread.sleep(20)
+            val sawDeletion = processEvents(key)
+            // can not recover reliably from deleted base without delay,
+            // but there is no need to pay for it on creation or change.
+            if (sawDeletion || !key.isValid) {
+              val isWindows = Properties.osName.startsWith("Windows")
+              if (isWindows) Thread.sleep(1000)
+              else Thread.sleep(20)
+            }
             if (!key.reset) {
               if (log.isTraceEnabled)
                 log.trace("may be recover from deletion {}", keyToFile(key))
@@ -264,7 +300,8 @@ class FileWatchService { self =>
     }
     closeWatchService()
 
-    def processEvents(key: WatchKey) =
+    def processEvents(key: WatchKey): Boolean = {
+      var sawDeletion = false
       for (event <- key.pollEvents.asScala) {
         val kind = event.kind
         val file = key.watchable
@@ -277,31 +314,39 @@ class FileWatchService { self =>
             && WatchKeyManager.hasRecursive(key))
           watch(file, WatchKeyManager.recListeners(key), false)
 
+        if (kind == ENTRY_CREATE || kind == ENTRY_DELETE)
+          Canon.invalidate(file)
+
         if (kind == ENTRY_CREATE)
           WatchKeyManager.maybeAdvanceProxy(key, file)
 
         val ls = WatchKeyManager.nonProxyListeners(key)
 
         if (kind == ENTRY_CREATE)
-          ls filter { _.isWatched(file) } foreach (_.fileCreated(file))
+          ls filter { _.isWatched(file) } foreach (events.created(_, file))
 
         if (kind == ENTRY_MODIFY)
-          ls filter { _.isWatched(file) } foreach (_.fileModified(file))
+          ls filter { _.isWatched(file) } foreach (events.modified(_, file))
 
         if (kind == ENTRY_DELETE) {
-          ls filter { _.isWatched(file) } foreach (_.fileDeleted(file))
+          sawDeletion = true
+          ls filter { _.isWatched(file) } foreach (events.deleted(_, file))
           for {
             o <- WatchKeyManager.baseFileObservers(key)
             if o.watcherListener.isWatched(file)
           } {
             WatchKeyManager.removeObserver(key, o)
-            o.watcherListener.baseRemoved()
+            events.dispatch(o.watcherListener.baseRemoved())
             watch(file, Set(o.watcherListener), true)
           }
         }
-        if (kind == OVERFLOW)
+        if (kind == OVERFLOW) {
+          sawDeletion = true
           log.warn(s"overflow event for ${file}")
+        }
       }
+      sawDeletion
+    }
 
     def maybeRecoverFromDeletion(key: WatchKey, retry: Int = 0): Unit =
       if (WatchKeyManager.hasBase(key)
@@ -318,10 +363,14 @@ class FileWatchService { self =>
           }
           log.error("Unable to re-create {} with parents", keyToFile(key))
         } else {
+          // anything under the base may have been a symbolic link
+          Canon.invalidateAll()
           val listeners         = WatchKeyManager.listeners(key)
           val baseFileListeners = WatchKeyManager.baseFileListeners(key)
-          listeners foreach (_.baseRemoved())
-          baseFileListeners foreach (o => o.fileDeleted(o.base))
+          events.dispatch {
+            listeners foreach (_.baseRemoved())
+            baseFileListeners foreach (o => o.fileDeleted(o.base))
+          }
           WatchKeyManager.removeKey(key)
           watch(key, listeners, true)
         }
@@ -351,6 +400,7 @@ class FileWatchService { self =>
       log.info("close  WatchService")
       shouldRun = false
       watchService.close();
+      events.shutdown()
     } catch {
       case e: Throwable =>
         log.error("failed to close WatchService {}", e);
@@ -432,6 +482,15 @@ class FileWatchService { self =>
     val keymap: Map[WatchKey, Set[WatchKeyObserver]] =
       new ConcurrentHashMap().asScala
 
+    // reverse lookup, linear scans of keymap do not scale to 100k+ dirs
+    private val dirs: Map[String, WatchKey] =
+      new ConcurrentHashMap().asScala
+
+    private def forget(key: WatchKey): Unit = {
+      keymap.remove(key)
+      dirs.remove(keyToFile(key).getAbsolutePath, key)
+    }
+
     def contains(key: WatchKey) =
       keymap.contains(key)
 
@@ -441,7 +500,9 @@ class FileWatchService { self =>
       val oldListeners = keymap.putIfAbsent(key, l).getOrElse(l)
       val newListeners = oldListeners + o
       val status       = keymap.replace(key, oldListeners, newListeners)
-      if (!status) {
+      if (status)
+        dirs.put(keyToFile(key).getAbsolutePath, key)
+      else {
         log.warn(s"retry adding ${o.observerType} to ${keyToFile(key)}")
         addObserver(key, o)
       }
@@ -455,7 +516,7 @@ class FileWatchService { self =>
         case Some(oldObservers) => {
           val newObservers = oldObservers - o
           if (newObservers.isEmpty) {
-            keymap.remove(key)
+            forget(key)
             key.cancel()
           } else if (!keymap.replace(key, oldObservers, newObservers))
             if (retry > 0)
@@ -486,7 +547,7 @@ class FileWatchService { self =>
 
           if (observers.size == 0 || unneeded.size == observers.size) {
             key.cancel() // can hang, https://bugs.openjdk.java.net/browse/JDK-8029516
-            keymap.remove(key)
+            forget(key)
           } else if (observers.size != retained.size)
             if (!keymap.replace(key, observers, retained))
               log.error(
@@ -539,7 +600,7 @@ class FileWatchService { self =>
 
     def removeKey(key: WatchKey): Unit = {
       key.cancel()
-      keymap.remove(key)
+      forget(key)
     }
 
     def hasRecursive(key: WatchKey) =
@@ -598,14 +659,9 @@ class FileWatchService { self =>
         case None => false
       }
 
-    def totalKeyNum() =
-      keymap.keys.foldLeft(0) { (a, _) =>
-        a + 1
-      }
+    def totalKeyNum() = keymap.size
 
     def keyFromFile(f: File): Option[WatchKey] =
-      keymap.keys.find { k =>
-        keyToFile(k).getAbsolutePath == f.getAbsolutePath
-      }
+      dirs.get(f.getAbsolutePath)
   }
 }
@@ -19,6 +19,19 @@ trait FileChangeListener {
   def baseReCreated(@deprecated("local", "") f: FileObject): Unit = {}
   def baseRemoved(@deprecated("local", "") f: FileObject): Unit   = {}
   def baseRegistered(): Unit                                      = {}
+
+  /**
+   * The net changes of a coalescing window, where every file appears
+   * once. Override to process them in bulk, otherwise they are
+   * delivered one by one.
+   */
+  def filesChanged(added: Seq[FileObject],
+                   changed: Seq[FileObject],
+                   removed: Seq[FileObject]): Unit = {
+    added.foreach(fileAdded)
+    changed.foreach(fileChanged)
+    removed.foreach(fileRemoved)
+  }
 }
 
 trait Watcher {
@@ -71,7 +84,7 @@ class ClassfileWatcher(
 }
 
 trait Java7WatcherBuilder extends SLF4JLogging {
-  import org.ensime.filewatcher.WatcherListener
+  import org.ensime.filewatcher.{ FileChange, WatcherListener }
   val serviceBuilder = new Java7WatchServiceBuilder()
   def build(
     watched: File,
@@ -91,10 +104,22 @@ trait Java7WatcherBuilder extends SLF4JLogging {
     uuid: UUID,
     vfs: EnsimeVFS
   ): WatcherListener
+
+  /** `(added, changed, removed)` */
+  protected def partition(
+    changes: Seq[FileChange],
+    vfs: EnsimeVFS
+  ): (Seq[FileObject], Seq[FileObject], Seq[FileObject]) = {
+    def files(p: PartialFunction[FileChange, File]) =
+      changes.collect(p).map(f => vfs.vfile(f))
+    (files { case FileChange.Added(f) => f },
+     files { case FileChange.Changed(f) => f },
+     files { case FileChange.Removed(f) => f })
+  }
 }
 
 class JarJava7WatcherBuilder() extends Java7WatcherBuilder {
-  import org.ensime.filewatcher.WatcherListener
+  import org.ensime.filewatcher.{ FileChange, WatcherListener }
   override def toWatcherListener(
     l: FileChangeListener,
     baseFile: File,
@@ -111,6 +136,10 @@ class JarJava7WatcherBuilder() extends Java7WatcherBuilder {
       override def fileDeleted(f: File) = {}
       override def fileModified(f: File) =
         l.fileChanged(vfs.vfile(f))
+      override def filesChanged(changes: Seq[FileChange]): Unit = {
+        val (added, changed, _) = partition(changes, vfs)
+        l.filesChanged(added, changed, Nil)
+      }
       override def baseRegistered(): Unit =
         l.baseRegistered()
       override def baseRemoved(): Unit =
@@ -125,7 +154,7 @@ class JarJava7WatcherBuilder() extends Java7WatcherBuilder {
 }
 
 private class ClassJava7WatcherBuilder() extends Java7WatcherBuilder {
-  import org.ensime.filewatcher.WatcherListener
+  import org.ensime.filewatcher.{ FileChange, WatcherListener }
   override def toWatcherListener(
     l: FileChangeListener,
     baseFile: File,
@@ -145,6 +174,10 @@ private class ClassJava7WatcherBuilder() extends Java7WatcherBuilder {
         l.fileRemoved(vfs.vfile(f))
       override def fileModified(f: File) =
         l.fileChanged(vfs.vfile(f))
+      override def filesChanged(changes: Seq[FileChange]): Unit = {
+        val (added, changed, removed) = partition(changes, vfs)
+        l.filesChanged(added, changed, removed)
+      }
       override def baseRegistered(): Unit = {
         notifyExisting = true
         l.baseRegistered()
@@ -8,7 +8,13 @@ import java.nio.file.Path
 import scala.collection.JavaConverters._
 import akka.event.slf4j.SLF4JLogging
 import org.apache.commons.vfs2.FileObject
-import org.apache.lucene.document.{ Document, TextField }
+import org.apache.lucene.document.{
+  Document,
+  LongPoint,
+  StoredField,
+  StringField,
+  TextField
+}
 import org.apache.lucene.document.Field.Store
 import org.apache.lucene.index.Term
 import org.apache.lucene.search._
@@ -39,6 +45,44 @@ object IndexService extends SLF4JLogging {
     }.filter(_.size > 1).flatMap(cases) - term
   }
 
+  /**
+   * Each camelCase hump of the simple name (and of its `$` and `_`
+   * separated parts) is indexed as the edge n-grams of the hump,
+   * tagged with its position, e.g. `addShutdownHook` gives `0:a`,
+   * `0:ad`, `0:add`, `1:s`, ..., `2:hook`.
+   *
+   * A camelCase query such as `aSHook` is then a conjunction of term
+   * lookups (`0:a`, `1:s`, `2:hook`) instead of a wildcard query that
+   * has to enumerate the term dictionary.
+   */
+  private[indexer] val MaxHumps      = 8
+  private[indexer] val MaxHumpLength = 16
+
+  private def splitHumps(s: String): List[String] =
+    s.split("(?<!^)(?=[A-Z])").toList
+      .filter(_.nonEmpty)
+      .take(MaxHumps)
+      .map(_.toLowerCase.take(MaxHumpLength))
+
+  private[indexer] def humpTerms(fqn: String): Set[String] = {
+    val name = fqn.replaceAll("\\(.*", "").split('.').last
+    for {
+      part          <- name.split("[$_]").toSet[String]
+      (hump, index) <- splitHumps(part).zipWithIndex
+      length        <- 1 to hump.length
+    } yield s"$index:${hump.take(length)}"
+  }
+
+  /** @return the terms to look up for a camelCase `query`, if it is one */
+  private[indexer] def humpQueryTerms(query: String): Option[List[String]] =
+    if (query.exists(c => c == '.' || c == ' ')) None
+    else
+      splitHumps(query) match {
+        case humps @ (_ :: _ :: _) =>
+          Some(humps.zipWithIndex.map { case (h, i) => s"$i:$h" })
+        case _ => None
+      }
+
   sealed trait FqnIndex extends Entity {
     def file: Option[FileCheck] // not retrieved
     def fqn: String
@@ -55,8 +99,11 @@ object IndexService extends SLF4JLogging {
     cons: (String, Option[FileCheck]) => T
   ) extends EntityS(tpe) {
     def addFields(doc: Document, i: T): Unit = {
-      doc.add(new TextField("file", i.file.get.filename, Store.NO))
+      doc.add(new TextField("file", i.file.get.filename, Store.YES))
       doc.add(new TextField("fqn", i.fqn, Store.YES))
+      humpTerms(i.fqn).foreach { t =>
+        doc.add(new StringField("humps", t, Store.NO))
+      }
     }
     def toEntity(d: Document): T = cons(d.get("fqn"), None)
   }
@@ -85,6 +132,10 @@ object IndexService extends SLF4JLogging {
     new Term("TYPE", classOf[FieldIndex].getSimpleName)
   )
 
+  // BooleanQuery allows 1024 clauses
+  private val MaxExclusions = 512
+  private val OverFetch     = 4
+
   /**
    * Like `PrefixQuery` but gives a higher value to exact matches.
    * [Stack Overflow](http://stackoverflow.com/questions/17723025)
@@ -95,15 +146,28 @@ object IndexService extends SLF4JLogging {
       .add(new TermQuery(t), Occur.SHOULD)
       .build()
 
-  def boostedPrefixQuery(t: Term, camelCaseTerm: Term): Query =
-    new BooleanQuery.Builder()
+  def boostedPrefixQuery(t: Term, camelCase: Option[Query]): Query = {
+    val builder = new BooleanQuery.Builder()
       .add(new PrefixQuery(t), Occur.SHOULD)
       .add(new TermQuery(t), Occur.SHOULD)
-      .add(new WildcardQuery(camelCaseTerm), Occur.SHOULD)
-      .build()
+    camelCase.foreach(builder.add(_, Occur.SHOULD))
+    builder.build()
+  }
+
+  /** Matches names whose leading humps start with those of the query. */
+  def camelCaseQuery(query: String): Option[Query] =
+    humpQueryTerms(query).map { terms =>
+      val humps = terms.foldLeft(new BooleanQuery.Builder()) { (b, t) =>
+        b.add(new TermQuery(new Term("humps", t)), Occur.MUST)
+      }
+      // scored like the prefix query, i.e. no term statistics
+      new ConstantScoreQuery(humps.build())
+    }
 }
 
-class IndexService(path: Path)(implicit ec: ExecutionContext) {
+class IndexService(path: Path, tombstones: Tombstones)(
+  implicit ec: ExecutionContext
+) {
   import org.ensime.indexer.IndexService._
 
   private val analyzers = Map(
@@ -118,9 +182,6 @@ class IndexService(path: Path)(implicit ec: ExecutionContext) {
     1 - .25f * nonTrailing$s
   }
 
-  private def calculateCamelCaseTerm(q: String): Term =
-    new Term("fqn", q.replaceAll("(?<!^)([A-Z])", "*$1") + "*")
-
   def persist(symbols: List[SourceSymbolInfo],
               commit: Boolean,
               boost: Boolean): Future[Unit] = {
@@ -140,6 +201,12 @@ class IndexService(path: Path)(implicit ec: ExecutionContext) {
         FieldIndex(t.javaName.fqnString, Some(f)).toDocument
     }(collection.breakOut)
 
+    fqns foreach { doc =>
+      val generation = tombstones.generation(doc.get("file"))
+      doc.add(new LongPoint("generation", generation))
+      doc.add(new StoredField("generation", generation))
+    }
+
     if (boost) {
       fqns foreach { fqn =>
         val currentBoost = fqn.boost("fqn")
@@ -167,15 +234,54 @@ class IndexService(path: Path)(implicit ec: ExecutionContext) {
     lucene.delete(terms, commit = false) // don't commit yet
   }
 
+  /** Removes the documents of a `file` that are older than `generation`. */
+  def compact(file: String, generation: Long): Future[Unit] =
+    lucene.delete(List(dead(file, generation)), commit = false)
+
+  private def dead(file: String, generation: Long): Query =
+    new BooleanQuery.Builder()
+      .add(new TermQuery(new Term("file", file)), Occur.MUST)
+      .add(LongPoint.newRangeQuery("generation", Long.MinValue, generation - 1),
+           Occur.MUST)
+      .build()
+
+  /**
+   * The top `max` live documents. Superseded documents remain until
+   * they are compacted and, since they are usually the user's (and
+   * boosted), they would take the place of live documents: they are
+   * excluded by the query, unless there are too many files to compact.
+   */
+  private def searchLive(q: Query, max: Int): Future[List[Document]] = {
+    val pending = tombstones.pending
+    if (pending.isEmpty) lucene.search(q, max)
+    else if (pending.size <= MaxExclusions) {
+      val excluding = new BooleanQuery.Builder().add(q, Occur.MUST)
+      pending.foreach {
+        case (file, generation) =>
+          excluding.add(dead(file, generation), Occur.MUST_NOT)
+      }
+      lucene.search(excluding.build(), max).map(_.filter(live))
+    } else
+      lucene.search(q, max * OverFetch).map(_.filter(live).take(max))
+  }
+
+  // superseded documents remain until they are compacted
+  private def live(d: Document): Boolean =
+    Option(d.get("file")).forall { file =>
+      val generation = Option(d.getField("generation"))
+        .flatMap(f => Option(f.numericValue))
+        .fold(0L)(_.longValue)
+      tombstones.isLive(file, generation)
+    }
+
   def searchClasses(query: String, max: Int): Future[List[ClassIndex]] = {
     val q = new BooleanQuery.Builder()
-      .add(boostedPrefixQuery(new Term("fqn", query),
-                              calculateCamelCaseTerm(query)),
+      .add(boostedPrefixQuery(new Term("fqn", query), camelCaseQuery(query)),
            Occur.MUST)
       .add(ClassIndexT, Occur.MUST)
       .build()
 
-    lucene.search(q, max).map(_.map(_.toEntity[ClassIndex]).distinct)
+    searchLive(q, max).map(_.map(_.toEntity[ClassIndex]).distinct)
   }
 
   def searchClassesMethods(terms: List[String],
@@ -184,13 +290,12 @@ class IndexService(path: Path)(implicit ec: ExecutionContext) {
       terms.map(buildTermClassMethodQuery).asJavaCollection,
       0f
     )
-    lucene.search(query, max).map(_.map(_.toEntity[ClassIndex]).distinct)
+    searchLive(query, max).map(_.map(_.toEntity[ClassIndex]).distinct)
   }
 
   def buildTermClassMethodQuery(query: String): Query =
     new BooleanQuery.Builder()
-      .add(boostedPrefixQuery(new Term("fqn", query),
-                              calculateCamelCaseTerm(query)),
+      .add(boostedPrefixQuery(new Term("fqn", query), camelCaseQuery(query)),
            Occur.MUST)
       .add(
         new BooleanQuery.Builder()
@@ -0,0 +1,197 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import java.io._
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file._
+import java.sql.Timestamp
+import java.util.zip.{ ZipEntry, ZipInputStream, ZipOutputStream }
+
+import scala.collection.JavaConverters._
+import scala.util.Try
+
+import akka.event.slf4j.SLF4JLogging
+import org.ensime.indexer.graph.FileCheck
+
+/**
+ * A portable copy of the index (the Lucene directory and the graph
+ * database) so that a server can start from an index that was created
+ * elsewhere, e.g. by an `exitAfterIndex` run on a CI server.
+ *
+ * A snapshot is a zip file. The first entry is the manifest, recording
+ * the snapshot format, the index version, the roots (project and JDK)
+ * and the `FileCheck`s that were indexed, followed by the contents of
+ * the storage directories. Snapshots are only restored into an empty
+ * cache, and only if the index version matches: the usual `refresh`
+ * then re-indexes whatever has changed since the snapshot was taken.
+ *
+ * The index refers to files by absolute URI, inside the Lucene and
+ * graph storage, and they are not rewritten on restore. A snapshot is
+ * therefore rejected if its roots are not the ones of this server, or
+ * if none of its `FileCheck`s is still current here: refresh would
+ * delete everything that it restored.
+ *
+ * The storage must not be in use while a snapshot is written.
+ */
+private[indexer] object IndexSnapshot extends SLF4JLogging {
+  private val Format        = "2"
+  private val ManifestEntry = "MANIFEST"
+  // held by live storage, never part of a snapshot
+  private val Locks = Set("write.lock", "dirty.fl", "database.ocf.lock")
+
+  final case class SnapshotManifest(version: String,
+                                    roots: List[String],
+                                    checks: List[FileCheck])
+
+  /** Writes the `dirs` (children of `base`) to `to`. */
+  def write(base: Path,
+            dirs: List[String],
+            manifest: SnapshotManifest,
+            to: Path): Unit = {
+    Option(to.toAbsolutePath.getParent).foreach(Files.createDirectories(_))
+    val tmp = to.resolveSibling(to.getFileName + ".tmp")
+    val out = new ZipOutputStream(
+      new BufferedOutputStream(Files.newOutputStream(tmp))
+    )
+    try {
+      out.putNextEntry(new ZipEntry(ManifestEntry))
+      out.write(writeManifest(manifest).getBytes(UTF_8))
+      out.closeEntry()
+
+      for {
+        dir  <- dirs
+        file <- files(base.resolve(dir))
+        if Files.isRegularFile(file)
+        if !Locks(file.getFileName.toString)
+      } {
+        val name = base.relativize(file).toString.replace('\\', '/')
+        out.putNextEntry(new ZipEntry(name))
+        Files.copy(file, out)
+        out.closeEntry()
+      }
+    } finally out.close()
+    Files.move(tmp, to, StandardCopyOption.REPLACE_EXISTING)
+  }
+
+  /**
+   * Streams the snapshot into `base`, if it has the expected `version`
+   * and `roots`, at least one of its files is unchanged (per `changed`)
+   * and none of the `dirs` exist yet.
+   *
+   * @return the manifest of the snapshot, if it was restored.
+   */
+  def restore(from: Path,
+              base: Path,
+              dirs: List[String],
+              version: String,
+              roots: List[String],
+              changed: FileCheck => Boolean): Option[SnapshotManifest] =
+    if (!Files.isRegularFile(from) ||
+        dirs.exists(d => Files.exists(base.resolve(d)))) None
+    else {
+      // unpacked next to the storage, then renamed into place. If a
+      // rename fails, those that succeeded are undone so that the cache
+      // is empty again. Renames are not atomic as a group: a server that
+      // is killed in between leaves a partial index, which is recovered
+      // the usual way, by deleting the .ensime_cache.
+      val staging = Files.createTempDirectory(
+        Files.createDirectories(base),
+        "snapshot-"
+      )
+      val in = new ZipInputStream(
+        new BufferedInputStream(Files.newInputStream(from))
+      )
+      try {
+        val first = in.getNextEntry
+        if (first == null || first.getName != ManifestEntry)
+          throw new IOException(s"$from is not an index snapshot")
+        val manifest = readManifest(new String(readAll(in), UTF_8))
+        lazy val stale = manifest.checks.count(changed)
+        if (manifest.version != version) {
+          log.warn(s"ignoring $from, it is for index ${manifest.version}")
+          None
+        } else if (manifest.roots != roots) {
+          log.warn(
+            s"ignoring $from, it was taken in ${manifest.roots.mkString(", ")}"
+          )
+          None
+        } else if (manifest.checks.nonEmpty && stale == manifest.checks.size) {
+          log.warn(s"ignoring $from, none of its files are current")
+          None
+        } else {
+          log.info(
+            s"$stale of ${manifest.checks.size} files in $from have changed since and will be re-indexed"
+          )
+          var entry = in.getNextEntry
+          while (entry != null) {
+            val target = staging.resolve(entry.getName).normalize
+            if (!target.startsWith(staging))
+              throw new IOException(s"bad entry ${entry.getName} in $from")
+            Files.createDirectories(target.getParent)
+            Files.copy(in, target)
+            entry = in.getNextEntry
+          }
+          val unpacked = dirs.filter(d => Files.exists(staging.resolve(d)))
+          var moved    = List.empty[Path]
+          try unpacked.foreach { d =>
+            Files.move(staging.resolve(d), base.resolve(d))
+            moved ::= base.resolve(d)
+          } catch {
+            case e: IOException =>
+              moved.foreach(delete)
+              throw e
+          }
+          Some(manifest)
+        }
+      } finally {
+        in.close()
+        delete(staging)
+      }
+    }
+
+  private def writeManifest(m: SnapshotManifest): String = {
+    val header = List(s"format=$Format", s"version=${m.version}")
+    val roots  = m.roots.map(r => s"root=$r")
+    val checks = m.checks.map(c => s"${c.timestamp.getTime} ${c.filename}")
+    (header ::: roots ::: checks).mkString("", "\n", "\n")
+  }
+
+  private def readManifest(text: String): SnapshotManifest =
+    text.split("\n").toList match {
+      case format :: version :: rest
+          if format == s"format=$Format" && version.startsWith("version=") =>
+        val (roots, checks) = rest.span(_.startsWith("root="))
+        SnapshotManifest(
+          version.stripPrefix("version="),
+          roots.map(_.stripPrefix("root=")),
+          checks.filter(_.nonEmpty).map { line =>
+            val (time, filename) = line.splitAt(line.indexOf(' '))
+            FileCheck(filename.drop(1), new Timestamp(time.toLong))
+          }
+        )
+      case _ => throw new IOException("unsupported index snapshot format")
+    }
+
+  private def readAll(in: InputStream): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream
+    val buf   = new Array[Byte](8192)
+    var n     = in.read(buf)
+    while (n >= 0) {
+      bytes.write(buf, 0, n)
+      n = in.read(buf)
+    }
+    bytes.toByteArray
+  }
+
+  // parents before their children
+  private def files(dir: Path): List[Path] = {
+    val stream = Files.walk(dir)
+    try stream.iterator.asScala.toList
+    finally stream.close()
+  }
+
+  private def delete(dir: Path): Unit =
+    if (Files.exists(dir))
+      files(dir).reverse.foreach(p => Try(Files.delete(p)))
+}
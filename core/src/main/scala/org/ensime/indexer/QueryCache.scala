@@ -0,0 +1,58 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import java.util.{ LinkedHashMap, Map => JMap }
+
+import scala.concurrent.{ ExecutionContext, Future }
+import scala.util.Success
+
+/**
+ * Bounded LRU of in-flight and completed index queries.
+ *
+ * Every `invalidate` starts a new generation: entries from earlier
+ * generations are dropped, and queries that were started before the
+ * invalidation are not remembered when they complete, so a result can
+ * never outlive the index contents that produced it. Failed queries
+ * are never cached. Concurrent identical queries share one `Future`.
+ */
+private[indexer] final class QueryCache(maxSize: Int)(
+  implicit ec: ExecutionContext
+) {
+  private[this] var generation: Long = 0L
+
+  private[this] val entries =
+    new LinkedHashMap[Any, Future[Any]](16, 0.75f, true) {
+      override def removeEldestEntry(e: JMap.Entry[Any, Future[Any]]): Boolean =
+        size() > maxSize
+    }
+
+  def apply[T](key: Any)(query: => Future[T]): Future[T] = {
+    val (gen, cached) = synchronized {
+      (generation, Option(entries.get(key)))
+    }
+    cached match {
+      case Some(hit) => hit.asInstanceOf[Future[T]]
+      case None =>
+        val work = query
+        synchronized {
+          if (gen == generation) entries.put(key, work)
+        }
+        work.onComplete {
+          case Success(_) =>
+          case _ =>
+            synchronized {
+              if (entries.get(key) eq work) entries.remove(key)
+            }
+        }
+        work
+    }
+  }
+
+  def invalidate(): Unit = synchronized {
+    generation += 1
+    entries.clear()
+  }
+
+  def size: Int = synchronized(entries.size)
+}
@@ -3,7 +3,10 @@
 package org.ensime.indexer
 
 import java.net.URI
-import org.ensime.util.Debouncer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import org.ensime.util.{ Debouncer, MemoryGovernor }
+import scala.collection.JavaConverters._
 import scala.concurrent._
 import scala.concurrent.duration._
 import scala.util.{ Failure, Properties, Success }
@@ -55,6 +58,10 @@ class SearchService(
   /**
    * Changelog:
    *
+   * 2.0.6 - re-indexing supersedes generations instead of deleting
+   *
+   * 2.0.5 - camelCase humps as edge n-grams instead of wildcard queries
+   *
    * 2.0.4 - find usages and show implementations using Indexer
    *
    * 2.0.3g - graphpocalypse
@@ -83,13 +90,49 @@ class SearchService(
    *
    * 1.0 - initial schema
    */
-  private val version = "2.0.4"
+  private val version = "2.0.6"
+
+  private val storage = List("index-" + version, "graph-" + version)
+
+  // the stored URIs are absolute, a snapshot is only valid in the same place
+  private val snapshotRoots =
+    List(config.rootDir.file, config.javaHome.file).map(_.toAbsolutePath.toString)
+
+  // before the storage is opened, which would create an empty index
+  if (!serverConfig.exitAfterIndex) serverConfig.indexSnapshot.foreach { s =>
+    Try(
+      IndexSnapshot.restore(
+        s.file,
+        config.cacheDir.file,
+        storage,
+        version,
+        snapshotRoots,
+        c => !c.file.exists() || c.changed
+      )
+    ) match {
+      case Success(Some(manifest)) =>
+        log.info(
+          s"restored the index of ${manifest.checks.size} files from ${s.file}"
+        )
+      case Success(None) =>
+      case Failure(NonFatal(e)) =>
+        log.warn(s"could not restore the index from ${s.file}", e)
+    }
+  }
+
+  private val tombstones = new Tombstones
+
+  /** Shared with the analyzers, which also do background work. */
+  val memory = new MemoryGovernor(serverConfig.memory)
+  memory.start()
 
   private[indexer] val index = new IndexService(
-    config.cacheDir.file / ("index-" + version)
+    config.cacheDir.file / ("index-" + version),
+    tombstones
   )
   private val db = new GraphService(
-    (config.cacheDir.file / ("graph-" + version)).toFile
+    (config.cacheDir.file / ("graph-" + version)).toFile,
+    tombstones
   )
 
   val noReverseLookups: Boolean =
@@ -136,9 +179,15 @@ class SearchService(
    * is unnecessary (e.g. we already know that a jar or classfile has
    * been indexed).
    *
+   * Tiers are indexed in order (the user's code, then libraries, then
+   * the JDK). The index is committed at the end of each tier and every
+   * `CommitInterval` within it, so searches are answered from whatever
+   * has been indexed so far without a Lucene commit per batch.
+   *
+   * @param ready called when each tier has been committed.
    * @return the number of rows (removed, indexed) from the database.
    */
-  def refresh(): Future[(Int, Int)] = {
+  def refresh(ready: IndexTier => Unit = _ => ()): Future[(Int, Int)] = {
     // it is much faster during startup to obtain the full list of
     // known files from the DB then and check against the disk, than
     // check each file against DatabaseService.outOfDate
@@ -157,22 +206,36 @@ class SearchService(
       deleteInBatches(checks.map(_.file))
     }
 
-    // a snapshot of everything that we want to index
-    def findBases(): (Set[FileObject], Map[FileName, Set[FileObject]]) = {
-      val (jarFiles, dirs) = config.projects.flatMap {
-        case m =>
-          m.targets
-            .map(_.file.toFile)
-            .filter(_.exists())
-            .toList ::: m.libraryJars.toList.map(_.file.toFile)
-      }.partition(_.isJar)
+    def findBases(files: List[File]): Bases = {
+      val (jarFiles, dirs) = files.partition(_.isJar)
       val grouped = dirs
         .map(d => scanGrouped(vfs.vfile(d)))
         .fold(Map.empty[FileName, Set[FileObject]])(_ merge _)
-      val jars: Set[FileObject] =
-        (jarFiles ++ EnsimeConfigProtocol.javaRunTime(config))
-          .map(vfs.vfile)(collection.breakOut)
-      (jars, grouped)
+      Bases(jarFiles.map(vfs.vfile)(collection.breakOut), grouped)
+    }
+
+    // a snapshot of everything that we want to index, by tier
+    def findTiers(): List[(IndexTier, Bases)] = {
+      val targets = config.projects.flatMap(
+        _.targets.map(_.file.toFile).filter(_.exists())
+      )
+      val libraries =
+        config.projects.flatMap(_.libraryJars.map(_.file.toFile))
+      val tiers = List(
+        ProjectTier -> findBases(targets),
+        LibraryTier -> findBases(libraries),
+        JdkTier     -> findBases(EnsimeConfigProtocol.javaRunTime(config))
+      )
+      // a jar belongs to the first tier that mentions it
+      tiers
+        .foldLeft((Set.empty[String], List.empty[(IndexTier, Bases)])) {
+          case ((seen, done), (tier, bases)) =>
+            val jars = bases.jars.filterNot(j => seen(j.uriString))
+            val next = (tier, bases.copy(jars = jars))
+            (seen ++ jars.map(_.uriString), next :: done)
+        }
+        ._2
+        .reverse
     }
 
     def indexBase(
@@ -182,7 +245,7 @@ class SearchService(
     ): Future[Int] = {
       val base      = vfs.vfile(baseName.uriString)
       val outOfDate = fileCheck.forall(_.changed)
-      if (!outOfDate || !base.exists()) Future.successful(0)
+      if (!outOfDate || !base.exists() || !claim(base)) Future.successful(0)
       else {
         val boost = isUserFile(baseName)
         val indexed = extractSymbolsFromClassOrJar(base, grouped).flatMap(
@@ -197,47 +260,148 @@ class SearchService(
       }
     }
 
+    // only touched by the sequential batches
+    var committedAt = System.nanoTime()
+
     // index all the given bases and return number of rows written
-    def indexBases(files: (Set[FileObject], Map[FileName, Set[FileObject]]),
-                   checks: Seq[FileCheck]): Future[Int] = {
-      val (jars, classFiles) = files
+    def indexBases(bases: Bases,
+                   checksLookup: Map[String, FileCheck]): Future[Int] = {
       log.debug("Indexing bases...")
 
-      val checksLookup: Map[String, FileCheck] =
-        checks.map(check => (check.filename -> check)).toMap
-      val jarsWithChecks = jars.map { jar =>
+      val jarsWithChecks = bases.jars.map { jar =>
         val name = jar.getName
         (name, checksLookup.get(jar.uriString))
       }
 
-      val basesWithChecks: Seq[(FileName, Option[FileCheck])] = classFiles.map {
-        case (outerClassFile, _) =>
-          (outerClassFile, checksLookup.get(outerClassFile.uriString))
-      }(collection.breakOut)
-
-      (jarsWithChecks ++ basesWithChecks)
-        .grouped(serverConfig.indexBatchSize)
-        .foldLeft(Future.successful(0)) { (indexedCount, batch) =>
+      val basesWithChecks: Seq[(FileName, Option[FileCheck])] =
+        bases.classFiles.map {
+          case (outerClassFile, _) =>
+            (outerClassFile, checksLookup.get(outerClassFile.uriString))
+        }(collection.breakOut)
+
+      // smaller batches under memory pressure, pausing when critical
+      def indexInBatches(todo: List[(FileName, Option[FileCheck])],
+                         indexedCount: Int): Future[Int] =
+        if (todo.isEmpty) Future.successful(indexedCount)
+        else
           for {
-            c <- indexedCount
+            _     <- memory.relieved()
+            split = todo.splitAt(memory.batchSize(serverConfig.indexBatchSize))
             b <- Future.sequence {
-                  batch.map {
-                    case (file, check) => indexBase(file, check, classFiles)
+                  split._1.map {
+                    case (file, check) =>
+                      indexBase(file, check, bases.classFiles)
                   }
                 }.map(_.sum)
-          } yield c + b
-        }
+            // searchable soon, but not at the cost of a commit per batch
+            _ <- if (b > 0 && System.nanoTime() - committedAt > CommitInterval.toNanos) {
+                  committedAt = System.nanoTime()
+                  index.commit()
+                } else Future.successful(())
+            c <- indexInBatches(split._2, indexedCount + b)
+          } yield c
+
+      indexInBatches((jarsWithChecks ++ basesWithChecks).toList, 0)
+    }
+
+    def indexTiers(tiers: List[(IndexTier, Bases)],
+                   checks: Seq[FileCheck]): Future[Int] = {
+      val checksLookup: Map[String, FileCheck] =
+        checks.map(check => (check.filename -> check)).toMap
+      // the jars that can be indexed on demand, until their tier is
+      // reached (not the JDK, which is too big to do on a whim)
+      for {
+        (tier, bases) <- tiers
+        if tier != JdkTier
+        jar <- bases.jars
+        if checksLookup.get(jar.uriString).forall(_.changed)
+      } awaiting.put(jar.uriString, jar)
+
+      val indexed = tiers.foldLeft(Future.successful(0)) {
+        case (indexedCount, (tier, bases)) =>
+          for {
+            c <- indexedCount
+            b <- indexBases(bases, checksLookup)
+            _ <- index.commit()
+          } yield {
+            committedAt = System.nanoTime()
+            log.info(s"indexed $tier ($b rows)")
+            ready(tier)
+            c + b
+          }
+      }
+      // jars that failed to index on demand after their tier was reached
+      for {
+        c        <- indexed
+        leftover = awaiting.values.asScala.toSet
+        b <- if (leftover.isEmpty) Future.successful(0)
+            else indexBases(Bases(leftover, Map.empty), checksLookup)
+        _ <- if (b > 0) index.commit() else Future.successful(())
+      } yield c + b
     }
 
     // chain together all the future tasks
-    for {
+    val work = for {
+      _       <- db.loadGenerations()
       checks  <- db.knownFiles()
       stale   = findStaleFileChecks(checks)
       deletes <- deleteReferences(stale)
-      bases   = findBases()
-      added   <- indexBases(bases, checks)
-      _       <- index.commit()
-    } yield (deletes, added)
+      tiers   = findTiers()
+      added   <- indexTiers(tiers, checks)
+    } yield {
+      if (tombstones.pending.nonEmpty) compaction.call()
+      (deletes, added)
+    }
+    work
+  }
+
+  private val CommitInterval = 5.seconds
+
+  // jars that refresh has yet to index, by uri. Not cleared when refresh
+  // completes: what is left (refresh failed, or an on-demand index failed
+  // too late for refresh to retry it) can still be indexed on demand.
+  private val awaiting = new ConcurrentHashMap[String, FileObject]
+
+  // true unless the base is a jar that was already indexed on demand
+  private[indexer] def claim(base: FileObject): Boolean =
+    base.getName.getExtension != "jar" ||
+      awaiting.remove(base.uriString) != null
+
+  /**
+   * Indexes a jar now, instead of when `refresh` reaches its tier,
+   * e.g. because the user asked about one of its classes.
+   *
+   * @return true if the jar was indexed.
+   */
+  def indexNowAsync(jar: File): Future[Boolean] = {
+    val uri = vfs.vfile(jar).uriString
+    Option(awaiting.remove(uri)) match {
+      case None => Future.successful(false)
+      case Some(base) =>
+        log.info(s"indexing $base on demand")
+        val work = for {
+          symbols <- extractSymbolsFromClassOrJar(base, Map.empty)
+          _ <- persist(symbols,
+                       commitIndex = true,
+                       boost = isUserFile(base.getName))
+        } yield true
+        work.onComplete {
+          case Failure(e) =>
+            log.warn(s"failed to index $base on demand", e)
+            // refresh, or the next lookup, can try again
+            awaiting.put(uri, base)
+          case Success(_) =>
+        }
+        work
+    }
+  }
+  def indexNow(jar: File): Boolean =
+    Await.result(indexNowAsync(jar), QUERY_TIMEOUT)
+
+  // as if refresh had yet to reach the jar
+  private[indexer] def awaitRefresh(jar: File): Unit = {
+    val base = vfs.vfile(jar)
+    awaiting.put(base.uriString, base)
   }
 
   def refreshResolver(): Unit = resolver.update()
@@ -248,10 +412,12 @@ class SearchService(
     val iwork = index.persist(symbols, commitIndex, boost)
     val dwork = db.persist(symbols)
 
-    for {
+    val work = for {
       _       <- iwork
       inserts <- dwork
     } yield inserts
+    work.onComplete(_ => queries.invalidate())
+    work
   }
 
   def extractSymbolsFromClassOrJar(
@@ -406,22 +572,39 @@ class SearchService(
     }
   }
 
+  // results are only valid until the next persist or delete
+  private val queries = new QueryCache(256)
+
   /** free-form search for classes */
-  def searchClasses(query: String, max: Int): List[FqnSymbol] = {
-    val fqns = Await.result(index.searchClasses(query, max), QUERY_TIMEOUT)
-    Await.result(db.find(fqns), QUERY_TIMEOUT) take max
-  }
+  def searchClassesAsync(query: String, max: Int): Future[List[FqnSymbol]] =
+    queries(("classes", query, max)) {
+      for {
+        fqns <- index.searchClasses(query, max)
+        hits <- db.find(fqns)
+      } yield hits take max
+    }
 
   /** free-form search for classes and methods */
-  def searchClassesMethods(terms: List[String], max: Int): List[FqnSymbol] = {
-    val fqns =
-      Await.result(index.searchClassesMethods(terms, max), QUERY_TIMEOUT)
-    Await.result(db.find(fqns), QUERY_TIMEOUT) take max
-  }
+  def searchClassesMethodsAsync(terms: List[String],
+                                max: Int): Future[List[FqnSymbol]] =
+    queries(("classesMethods", terms, max)) {
+      for {
+        fqns <- index.searchClassesMethods(terms, max)
+        hits <- db.find(fqns)
+      } yield hits take max
+    }
 
   /** only for exact fqns */
+  def findUniqueAsync(fqn: String): Future[Option[FqnSymbol]] =
+    queries(("unique", fqn))(db.find(fqn))
+
+  // blocking variants, for callers that can't be asynchronous
+  def searchClasses(query: String, max: Int): List[FqnSymbol] =
+    Await.result(searchClassesAsync(query, max), QUERY_TIMEOUT)
+  def searchClassesMethods(terms: List[String], max: Int): List[FqnSymbol] =
+    Await.result(searchClassesMethodsAsync(terms, max), QUERY_TIMEOUT)
   def findUnique(fqn: String): Option[FqnSymbol] =
-    Await.result(db.find(fqn), QUERY_TIMEOUT)
+    Await.result(findUniqueAsync(fqn), QUERY_TIMEOUT)
 
   /** returns hierarchy of a type identified by fqn */
   def getTypeHierarchy(fqn: String,
@@ -470,23 +653,126 @@ class SearchService(
     val iwork = index.remove(files)
     val dwork = db.removeFiles(files)
 
-    for {
+    val work = for {
       _        <- iwork
       removals <- dwork
     } yield removals
+    work.onComplete { _ =>
+      files.foreach(f => tombstones.forget(f.uriString))
+      queries.invalidate()
+    }
+    work
+  }
+
+  /**
+   * Cheaper than `delete`, for files that are about to be indexed
+   * again: everything that was indexed for them is dead to queries
+   * and physically removed by a later compaction.
+   */
+  def supersede(files: List[FileObject]): Future[Unit] = {
+    val work = db.supersede(files.map(_.uriString))
+    work.onComplete { _ =>
+      queries.invalidate()
+      compaction.call()
+    }
+    work
+  }
+
+  private val compacting = new AtomicBoolean
+
+  /**
+   * Physically removes superseded entries, deleting files that no
+   * longer exist.
+   *
+   * @return the number of vertices that were removed.
+   */
+  def compact(): Future[Int] =
+    if (!compacting.compareAndSet(false, true)) Future.successful(0)
+    else {
+      val pending = tombstones.pending.toList
+      log.debug(s"compacting ${pending.size} superseded files")
+      val work = pending.foldLeft(Future.successful(0)) {
+        case (done, (file, generation)) =>
+          done.flatMap { count =>
+            val f = vfs.vfile(file)
+            val compacted =
+              if (!f.exists()) delete(List(f))
+              else
+                for {
+                  _       <- index.compact(file, generation)
+                  removed <- db.compact(file, generation)
+                } yield {
+                  tombstones.compacted(file, generation)
+                  removed
+                }
+            compacted.map(_ + count)
+          }
+      }
+      val committed = for {
+        removed <- work
+        _       <- index.commit()
+      } yield removed
+      committed.onComplete { result =>
+        compacting.set(false)
+        queries.invalidate()
+        // files that were superseded while we were busy
+        if (result.isSuccess && tombstones.pending.nonEmpty) compaction.call()
+      }
+      committed
+    }
+
+  // waits for indexing to go quiet
+  private lazy val compaction = Debouncer(
+    "compaction",
+    actorSystem.scheduler,
+    delay = 30.seconds,
+    maxDelay = 10.minutes
+  ) { () =>
+    compact()
+    ()
   }
 
   def fileChanged(f: FileObject): Unit = backlogActor ! IndexFile(f)
   def fileRemoved(f: FileObject): Unit = fileChanged(f)
   def fileAdded(f: FileObject): Unit   = fileChanged(f)
+  override def filesChanged(added: Seq[FileObject],
+                            changed: Seq[FileObject],
+                            removed: Seq[FileObject]): Unit =
+    backlogActor ! IndexFiles(added ++ changed ++ removed)
 
-  def shutdown(): Future[Unit] =
+  def shutdown(): Future[Unit] = {
+    memory.stop()
     Future.sequence {
       List(db.shutdown(), index.shutdown())
     } map (_ => ())
+  }
+
+  /**
+   * Shuts down, so that the storage is consistent, and writes it as a
+   * snapshot. For index-only runs: there is no way back.
+   */
+  def exportSnapshot(to: File): Future[Unit] =
+    for {
+      checks <- db.knownFiles()
+      _      <- shutdown()
+    } yield
+      blocking {
+        val manifest = IndexSnapshot.SnapshotManifest(version,
+                                                      snapshotRoots,
+                                                      checks.toList)
+        IndexSnapshot.write(config.cacheDir.file, storage, manifest, to.toPath)
+        log.info(s"wrote a snapshot of ${checks.size} indexed files to $to")
+      }
 }
 
 object SearchService {
+
+  /** Jars, and the classfiles of directories by top level class. */
+  private final case class Bases(
+    jars: Set[FileObject],
+    classFiles: Map[FileName, Set[FileObject]]
+  )
+
   sealed trait SourceSymbolInfo {
     def file: FileCheck
     def fqn: String
@@ -546,6 +832,7 @@ object SearchService {
 }
 
 final case class IndexFile(f: FileObject)
+final case class IndexFiles(fs: Seq[FileObject])
 
 class IndexingQueueActor(searchService: SearchService)
     extends Actor
@@ -566,19 +853,31 @@ class IndexingQueueActor(searchService: SearchService)
   val processDebounce =
     Debouncer.forActor(self, Process, delay = 5.seconds, maxDelay = 1.hour)
 
+  private def enqueue(f: FileObject): Unit = {
+    val topLevelClassFile = f match {
+      case jar if jar.getName.getExtension == "jar" => jar
+      case classFile                                => searchService.getTopLevelClassFile(classFile)
+    }
+    todo.addBinding(topLevelClassFile.getName, topLevelClassFile)
+  }
+
   override def receive: Receive = {
     case IndexFile(f) =>
-      val topLevelClassFile = f match {
-        case jar if jar.getName.getExtension == "jar" => jar
-        case classFile                                => searchService.getTopLevelClassFile(classFile)
-      }
-      todo.addBinding(topLevelClassFile.getName, topLevelClassFile)
+      enqueue(f)
+      processDebounce.call()
+
+    case IndexFiles(fs) =>
+      fs.foreach(enqueue)
       processDebounce.call()
 
     case Process if todo.isEmpty => // nothing to do
 
+    case Process if searchService.memory.pressure == HeapCritical =>
+      searchService.memory.metrics.increment("indexing.paused")
+      processDebounce.call()
+
     case Process =>
-      val batch = todo.take(250)
+      val batch = todo.take(searchService.memory.batchSize(250))
       batch.keys.foreach(todo.remove)
       if (todo.nonEmpty)
         processDebounce.call()
@@ -618,7 +917,7 @@ class IndexingQueueActor(searchService: SearchService)
                   retry()
                 case Success(indexed) =>
                   searchService
-                    .delete(
+                    .supersede(
                       indexed.flatMap(f => batch(f._1))(collection.breakOut)
                     )
                     .onComplete {
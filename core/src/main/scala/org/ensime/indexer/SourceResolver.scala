@@ -31,6 +31,10 @@ class SourceResolver(
   def fileAdded(f: FileObject)   = if (relevant(f)) debouncedUpdate.call()
   def fileRemoved(f: FileObject) = debouncedUpdate.call()
   def fileChanged(f: FileObject) = {}
+  override def filesChanged(added: Seq[FileObject],
+                            changed: Seq[FileObject],
+                            removed: Seq[FileObject]): Unit =
+    if (removed.nonEmpty || added.exists(relevant)) debouncedUpdate.call()
 
   def relevant(f: FileObject): Boolean = f.getName.isFile && {
     val file = f.asLocalFile
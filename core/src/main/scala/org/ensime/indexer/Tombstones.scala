@@ -0,0 +1,55 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters._
+
+/**
+ * The current generation of every indexed file (by uri).
+ *
+ * Re-indexing a file starts a new generation instead of deleting what
+ * was indexed before: every vertex and document is stamped with the
+ * generation of the file that it came from, and anything from an
+ * earlier generation is dead. Queries must ignore dead entries until a
+ * compaction physically removes them.
+ *
+ * Thread safe.
+ */
+private[indexer] final class Tombstones {
+  private[this] val generations = new ConcurrentHashMap[String, Long]
+  // the generation that each file must be compacted up to
+  private[this] val dirty = new ConcurrentHashMap[String, Long]
+
+  def generation(file: String): Long = generations.getOrDefault(file, 0L)
+
+  def isLive(file: String, generation: Long): Boolean =
+    generation >= this.generation(file)
+
+  /** Kills everything from the file's current generation. */
+  def supersede(file: String): Long = {
+    val next = generations.merge(file, 1L, (a: Long, b: Long) => a + b)
+    dirty.put(file, next)
+    next
+  }
+
+  /** For a file that was persisted, with its last compaction. */
+  def restore(file: String, generation: Long, compacted: Long): Unit = {
+    generations.put(file, generation)
+    if (compacted < generation) dirty.put(file, generation)
+  }
+
+  /** For a file that was physically deleted. */
+  def forget(file: String): Unit = {
+    generations.remove(file)
+    dirty.remove(file)
+  }
+
+  /** The files that have dead entries, with their current generation. */
+  def pending: Map[String, Long] = dirty.asScala.toMap
+
+  /** Unless the file was superseded again while it was compacted. */
+  def compacted(file: String, generation: Long): Unit =
+    dirty.remove(file, generation)
+}
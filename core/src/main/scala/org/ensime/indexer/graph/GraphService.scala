@@ -6,6 +6,7 @@ import java.sql.Timestamp
 import java.util.concurrent.{ Executors, ThreadFactory, TimeUnit }
 
 import scala.Predef._
+import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.concurrent._
 import scala.util.Try
@@ -14,8 +15,11 @@ import akka.event.slf4j.SLF4JLogging
 import com.orientechnologies.orient.core.Orient
 import com.orientechnologies.orient.core.config.OGlobalConfiguration
 import com.orientechnologies.orient.core.metadata.schema.OType
-import com.tinkerpop.blueprints.Vertex
-import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory
+import com.tinkerpop.blueprints.{ Direction, Vertex }
+import com.tinkerpop.blueprints.impls.orient.{
+  OrientBaseGraph,
+  OrientGraphFactory
+}
 import org.apache.commons.vfs2.FileObject
 import org.ensime.api.{ DeclaredAs, EnsimeFile }
 import org.ensime.indexer._
@@ -140,7 +144,7 @@ object FileCheck extends ((String, Timestamp) => FileCheck) {
 }
 
 // core/it:test-only *Search* -- -z prestine
-class GraphService(dir: File) extends SLF4JLogging {
+class GraphService(dir: File, tombstones: Tombstones) extends SLF4JLogging {
   import org.ensime.indexer.graph.GraphService._
 
   // all methods return Future, which means we can do isolation by
@@ -225,6 +229,85 @@ class GraphService(dir: File) extends SLF4JLogging {
     RichGraph.allV[FileCheck]
   }
 
+  /** Recovers the generation of every file, e.g. after a restart. */
+  def loadGenerations(): Future[Unit] = withGraphAsync { implicit g =>
+    g.getVerticesOfClass(FileCheckBdf.label).asScala.foreach { v =>
+      val generation = longProperty(v, GenerationKey)
+      if (generation > 0)
+        tombstones.restore(v.getProperty[String]("filename"),
+                           generation,
+                           longProperty(v, CompactedKey))
+    }
+  }
+
+  /**
+   * Starts a new generation for each of the `files`, which kills
+   * everything that was indexed for them. Constant cost per file: the
+   * dead vertices are only removed by `compact`.
+   */
+  def supersede(files: List[String]): Future[Unit] = withGraphAsync {
+    implicit g =>
+      g.begin()
+      files.foreach { file =>
+        val generation = tombstones.supersede(file)
+        RichGraph
+          .readUniqueV[FileCheck, String](file)
+          .foreach(_.setProperty(GenerationKey, Long.box(generation)))
+      }
+      g.commit()
+  }
+
+  /**
+   * Physically removes the dead vertices of a `file`, up to its
+   * `generation`.
+   *
+   * @return the number of vertices that were removed.
+   */
+  def compact(file: String, generation: Long): Future[Int] = withGraphAsync {
+    implicit g =>
+      def dead(v: Vertex): Boolean =
+        v.getProperty[String](OriginKey) == file &&
+          longProperty(v, GenerationKey) < generation
+
+      def remove(v: Vertex): Int =
+        if (Try(g.removeVertex(v)).isSuccess) 1 else 0
+
+      // the same traversal as deleting the file, skipping what is live
+      def compactSymbol(v: Vertex): Int = {
+        val members = v
+          .getVertices(Direction.IN, EnclosingClassS.label)
+          .asScala
+          .filter(_.getProperty[String]("typehint") != ClassDefBdf.label)
+          .toList
+        val usages = v.getVertices(Direction.IN, UsedInS.label).asScala.toList
+        val removed = members.map(compactSymbol).sum +
+          usages.filter(dead).map(remove).sum
+        if (!dead(v)) removed
+        else
+          removed + v
+            .getVertices(Direction.OUT, UsedAtS.label)
+            .asScala
+            .toList
+            .map(remove)
+            .sum + remove(v)
+      }
+
+      g.begin()
+      val removed = RichGraph.readUniqueV[FileCheck, String](file) match {
+        case None => 0
+        case Some(fileV) =>
+          fileV.setProperty(CompactedKey, Long.box(generation))
+          fileV.underlying
+            .getVertices(Direction.IN, DefinedInS.label)
+            .asScala
+            .toList
+            .map(compactSymbol)
+            .sum
+      }
+      g.commit()
+      removed
+  }
+
   def outOfDate(f: FileObject)(implicit vfs: EnsimeVFS): Future[Boolean] =
     withGraphAsync { implicit g =>
       RichGraph.readUniqueV[FileCheck, String](f.uriString) match {
@@ -238,6 +321,33 @@ class GraphService(dir: File) extends SLF4JLogging {
       val checks  = mutable.Map.empty[String, VertexT[FileCheck]]
       val classes = mutable.Map.empty[String, VertexT[ClassDef]]
 
+      // stamps a vertex with the generation of the file that it came
+      // from. A symbol that is indexed again loses the edges from its
+      // last generation, which are about to be added again.
+      def stamp[T](v: VertexT[T], file: String): VertexT[T] = {
+        val u = v.underlying
+        if (u.getProperty[String](OriginKey) != null)
+          u.getEdges(Direction.OUT,
+                     DefinedInS.label,
+                     EnclosingClassS.label,
+                     IsParentS.label)
+            .asScala
+            .toList
+            .foreach(g.removeEdge)
+        u.setProperty(OriginKey, file)
+        u.setProperty(GenerationKey, Long.box(tombstones.generation(file)))
+        v
+      }
+
+      // the generation of a file outlives its vertex (e.g. if it was
+      // superseded before it was first indexed)
+      def check(fileCheck: FileCheck): VertexT[FileCheck] = {
+        val v          = RichGraph.upsertV[FileCheck, String](fileCheck)
+        val generation = tombstones.generation(fileCheck.filename)
+        if (generation > 0) v.setProperty(GenerationKey, Long.box(generation))
+        v
+      }
+
       g.begin()
       symbols.foreach { s =>
         val scalaName     = s.scalapSymbol.map(_.scalaName)
@@ -246,7 +356,7 @@ class GraphService(dir: File) extends SLF4JLogging {
         val vertex = s match {
           case EmptySourceSymbolInfo(fileCheck) =>
             if (!checks.contains(fileCheck.filename)) {
-              RichGraph.upsertV[FileCheck, String](fileCheck)
+              check(fileCheck)
             }
             None
 
@@ -268,9 +378,10 @@ class GraphService(dir: File) extends SLF4JLogging {
                                     jdi)
 
             val fileV =
-              checks.getOrElse(fileCheck.filename,
-                               RichGraph.upsertV[FileCheck, String](fileCheck))
-            val classV = RichGraph.upsertV[ClassDef, String](classDef)
+              checks.getOrElse(fileCheck.filename, check(fileCheck))
+            val classV =
+              stamp(RichGraph.upsertV[ClassDef, String](classDef),
+                    fileCheck.filename)
             classes += (bs.fqn -> classV)
             RichGraph.insertE(classV, fileV, DefinedIn)
             val superClass = bs.superClass.map(
@@ -312,7 +423,7 @@ class GraphService(dir: File) extends SLF4JLogging {
                      bs.access,
                      (scalaName ++ typeSignature).reduceOption(_ + _))
             val methodV: VertexT[FqnSymbol] =
-              RichGraph.upsertV[Method, String](method)
+              stamp(RichGraph.upsertV[Method, String](method), s.file.filename)
             RichGraph.insertE(methodV, owner, EnclosingClass)
             Some(methodV)
 
@@ -325,7 +436,7 @@ class GraphService(dir: File) extends SLF4JLogging {
                               bs.access,
                               scalaName)
             val fieldV: VertexT[FqnSymbol] =
-              RichGraph.upsertV[Field, String](field)
+              stamp(RichGraph.upsertV[Field, String](field), s.file.filename)
             RichGraph.insertE(fieldV, owner, EnclosingClass)
             Some(fieldV)
 
@@ -338,7 +449,7 @@ class GraphService(dir: File) extends SLF4JLogging {
                               t.access,
                               Some(t.scalaName + t.typeSignature))
             val fieldV: VertexT[FqnSymbol] =
-              RichGraph.upsertV[Field, String](field)
+              stamp(RichGraph.upsertV[Field, String](field), s.file.filename)
             RichGraph.insertE(fieldV, owner, EnclosingClass)
             Some(fieldV)
         }
@@ -354,10 +465,12 @@ class GraphService(dir: File) extends SLF4JLogging {
             u <- usage
             v <- vertex
           } yield {
-            val intermediary: VertexT[UsageLocation] =
+            val intermediary: VertexT[UsageLocation] = stamp(
               RichGraph.insertV[UsageLocation](
                 UsageLocation(v.toDomain.source, ref.line)
-              )
+              ),
+              s.file.filename
+            )
             RichGraph.insertE(u, intermediary, UsedAt)
             RichGraph.insertE(intermediary, v, UsedIn)
           }
@@ -401,7 +514,7 @@ class GraphService(dir: File) extends SLF4JLogging {
    */
   def find(fqn: String): Future[Option[FqnSymbol]] = withGraphAsync {
     implicit g =>
-      RichGraph.readUniqueV[FqnSymbol, String](fqn).map(_.toDomain)
+      RichGraph.readUniqueV[FqnSymbol, String](fqn).filter(live).map(_.toDomain)
   }
 
   /**
@@ -410,7 +523,11 @@ class GraphService(dir: File) extends SLF4JLogging {
   def find(fqns: List[FqnIndex]): Future[List[FqnSymbol]] = withGraphAsync {
     implicit g =>
       fqns.flatMap(
-        fqn => RichGraph.readUniqueV[FqnSymbol, String](fqn.fqn).map(_.toDomain)
+        fqn =>
+          RichGraph
+            .readUniqueV[FqnSymbol, String](fqn.fqn)
+            .filter(live)
+            .map(_.toDomain)
       )
   }
 
@@ -418,17 +535,31 @@ class GraphService(dir: File) extends SLF4JLogging {
                         hierarchyType: Hierarchy.Direction,
                         levels: Option[Int]): Future[Option[Hierarchy]] =
     withGraphAsync { implicit g =>
-      RichGraph.classHierarchy[String](fqn, hierarchyType, levels)
+      def prune(h: Hierarchy): Option[Hierarchy] = h match {
+        case c: ClassDef => Some(c).filter(c => liveFqn(c.fqn))
+        case TypeHierarchy(c, refs) =>
+          if (liveFqn(c.fqn)) Some(TypeHierarchy(c, refs.flatMap(prune)))
+          else None
+      }
+      RichGraph
+        .classHierarchy[String](fqn, hierarchyType, levels)
+        .flatMap(prune)
     }
 
   def findUsageLocations(fqn: String): Future[Iterable[UsageLocation]] =
     withGraphAsync { implicit g =>
-      RichGraph.findUsageLocations[String](fqn).map(_.toDomain).distinct
+      RichGraph
+        .findUsageLocations[String](fqn)
+        .filter(live)
+        .map(_.toDomain)
+        .distinct
     }
 
   def findUsages(fqn: String): Future[Iterable[FqnSymbol]] = withGraphAsync {
     implicit g =>
-      RichGraph.findUsages[String](fqn).map(_.toDomain)
+      // a symbol that was indexed again is live, but keeps the usage
+      // locations of its older generations until they are compacted
+      RichGraph.findUsages[String](fqn, live).filter(live).map(_.toDomain)
   }
 
   def findClasses(source: EnsimeFile): Future[Seq[ClassDef]] = withGraphAsync {
@@ -436,19 +567,40 @@ class GraphService(dir: File) extends SLF4JLogging {
       val uri = Some(source.uriString)
       RichGraph.findV[ClassDef]("jdi") { c =>
         c.source == uri
-      }
+      }.filter(c => liveFqn(c.fqn))
   }
 
   def findClasses(jdi: String): Future[Seq[ClassDef]] = withGraphAsync {
     implicit g =>
       RichGraph.findV[ClassDef]("source") { c =>
         c.jdi == Some(jdi)
-      }
+      }.filter(c => liveFqn(c.fqn))
   }
 
+  // vertices that don't come from a file (e.g. referenced symbols
+  // that are not indexed) are always live
+  private def live(v: VertexT[_]): Boolean =
+    Option(v.underlying.getProperty[String](OriginKey)).forall { file =>
+      tombstones.isLive(file, longProperty(v.underlying, GenerationKey))
+    }
+
+  private def liveFqn(fqn: String)(implicit g: OrientBaseGraph): Boolean =
+    RichGraph.readUniqueV[FqnSymbol, String](fqn).forall(live)
+
 }
 
 object GraphService {
+  // untyped vertex properties, outside of the domain objects
+  private[indexer] val OriginKey     = "origin"
+  private[indexer] val GenerationKey = "generation"
+  private[indexer] val CompactedKey  = "compacted"
+
+  private[graph] def longProperty(v: Vertex, key: String): Long =
+    v.getProperty[AnyRef](key) match {
+      case n: java.lang.Number => n.longValue
+      case _                   => 0L
+    }
+
   private[indexer] case object DefinedIn      extends EdgeT[ClassDef, FileCheck]
   private[indexer] case object EnclosingClass extends EdgeT[FqnSymbol, ClassDef]
   private[indexer] case object UsedAt         extends EdgeT[FqnSymbol, UsageLocation]
@@ -445,8 +445,10 @@ package object syntax {
       }
     }
 
+    /** @param location keeps the usages that go through a location */
     def findUsages[P](
-      value: P
+      value: P,
+      location: VertexT[UsageLocation] => Boolean = _ => true
     )(
       implicit
       graph: OrientBaseGraph,
@@ -462,6 +464,7 @@ package object syntax {
             value
           )
           intermediary
+            .filter(location)
             .map(_.getOutVertices[FqnSymbol, UsedIn.type].head)
             .distinct
         case None => Seq.empty
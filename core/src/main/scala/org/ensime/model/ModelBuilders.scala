@@ -9,6 +9,7 @@ import org.ensime.indexer.MethodName
 import org.ensime.indexer.graph._
 import org.ensime.util.ensimefile._
 import org.ensime.util.fileobject._
+import org.ensime.util.{ Metrics, RunMemo }
 import org.ensime.vfs._
 
 import scala.collection.mutable
@@ -17,6 +18,16 @@ import scala.reflect.internal.util.{ NoPosition, Position }
 trait ModelBuilders {
   self: RichPresentationCompiler with FqnToSymbol =>
 
+  /**
+   * The models are immutable and only depend on the type or symbol,
+   * so they are reused until the next compiler run. Positions that
+   * are looked up in the index (`PosNeededYes`) are not: the index
+   * changes under a run, e.g. when a jar is indexed on demand.
+   */
+  private[this] val models = new RunMemo("Models", 8192)
+
+  def modelMetrics: Metrics = models.metrics
+
   def locateSymbolPos(sym: Symbol, needPos: PosNeeded): Option[SourcePosition] =
     _locateSymbolPos(sym, needPos).orElse({
       sym.companionSymbol match {
@@ -41,6 +52,11 @@ trait ModelBuilders {
         logger.debug(s"$sym ==> $fqn")
 
         val hit = search.findUnique(fqn)
+        if (hit.isEmpty) {
+          // its jar may not have been indexed yet: don't hold up the
+          // compiler, the next request will find it
+          containingJar(sym).foreach(search.indexNowAsync)
+        }
         logger.debug(s"search: $fqn = $hit")
         hit.flatMap(LineSourcePositionHelper.fromFqnSymbol(_)(vfs)).flatMap {
           sourcePos =>
@@ -54,6 +70,12 @@ trait ModelBuilders {
         None
     }
 
+  private def containingJar(sym: Symbol): Option[java.io.File] =
+    Option(sym.associatedFile)
+      .flatMap(_.underlyingSource)
+      .flatMap(f => Option(f.file))
+      .filter(_.getName.endsWith(".jar"))
+
   // When inspecting a type, transform a raw list of TypeMembers to a sorted
   // list of InterfaceInfo objects, each with its own list of sorted member infos.
   def prepareSortedInterfaceInfo(
@@ -142,7 +164,14 @@ trait ModelBuilders {
     // use needPos=PosNeededYes sparingly as it potentially causes lots of I/O
     def apply(typ: Type,
               needPos: PosNeeded = PosNeededNo,
-              members: Iterable[EntityInfo] = List.empty): TypeInfo = {
+              members: Iterable[EntityInfo] = List.empty): TypeInfo =
+      if (members.isEmpty && needPos != PosNeededYes)
+        models(currentRunId, ("type", typ, needPos))(build(typ, needPos, Nil))
+      else build(typ, needPos, members)
+
+    private def build(typ: Type,
+                      needPos: PosNeeded,
+                      members: Iterable[EntityInfo]): TypeInfo = {
       val tpe = typ match {
         case et: ExistentialType => et.underlying
         case s: SingleType       => s.widen
@@ -183,17 +212,23 @@ trait ModelBuilders {
 
   object ParamSectionInfoBuilder {
     def apply(params: Iterable[Symbol]): ParamSectionInfo =
-      new ParamSectionInfo(
-        params.map { s =>
-          (s.nameString, TypeInfo(s.tpe))
-        }.toList,
-        params.exists(_.isImplicit)
-      )
+      models(currentRunId, ("params", params.toList)) {
+        new ParamSectionInfo(
+          params.map { s =>
+            (s.nameString, TypeInfo(s.tpe))
+          }.toList,
+          params.exists(_.isImplicit)
+        )
+      }
   }
 
   object SymbolInfo {
 
-    def apply(sym: Symbol): SymbolInfo = {
+    def apply(sym: Symbol): SymbolInfo =
+      models(currentRunId, ("symbol", sym))(build(sym))
+        .copy(declPos = locateSymbolPos(sym, PosNeededYes))
+
+    private def build(sym: Symbol): SymbolInfo = {
       val tpe = askOption(sym.tpe) match {
         case None    => NoType
         case Some(t) => t
@@ -206,10 +241,11 @@ trait ModelBuilders {
         } else {
           (nameString, nameString)
         }
+      // the position is added by `apply`
       new SymbolInfo(
         name,
         localName,
-        locateSymbolPos(sym, PosNeededYes),
+        None,
         TypeInfo(tpe, PosNeededAvail)
       )
     }
@@ -222,13 +258,18 @@ trait ModelBuilders {
     def fromSymbolAndType(sym: Symbol,
                           tpe: Type,
                           relevance: Int): CompletionInfo = {
-      val typeInfo = TypeInfo(tpe)
+      // only the relevance differs between completions of a member
+      val (typeInfo, infix) =
+        models(currentRunId, ("completion", sym.nameString, tpe)) {
+          val typeInfo = TypeInfo(tpe)
+          (typeInfo, isInfix(sym.nameString, typeInfo))
+        }
       CompletionInfo(
         Some(typeInfo),
         sym.nameString,
         relevance,
         None,
-        isInfix(sym.nameString, typeInfo)
+        infix
       )
     }
 
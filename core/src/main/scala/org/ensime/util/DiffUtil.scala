@@ -8,20 +8,68 @@ import java.util.Date
 
 import scala.collection.JavaConverters._
 
+import difflib._
+
 object DiffUtil {
 
   def compareContents(original: Seq[String],
                       revised: Seq[String],
                       originalFile: File = new File("a"),
                       revisedFile: File = new File("b")): String = {
-    val diff = difflib.DiffUtils.diff(original.asJava, revised.asJava)
+    val diff = DiffUtils.diff(original.asJava, revised.asJava)
+    unified(original, diff, originalFile, revisedFile)
+  }
+
+  /**
+   * Like `compareContents`, for contents that are known to only differ
+   * in some regions: pairs of the lines of `original` and the lines of
+   * `revised` that replaced them, in order. Only the lines in a region
+   * are compared, so the cost is that of the change and not of the
+   * file.
+   */
+  def compareRegions(original: IndexedSeq[String],
+                     revised: IndexedSeq[String],
+                     regions: Seq[(Range, Range)],
+                     originalFile: File = new File("a"),
+                     revisedFile: File = new File("b")): String = {
+    val diff = new Patch[String]
+    regions.foreach {
+      case (from, to) =>
+        DiffUtils
+          .diff(original.slice(from.start, from.end).asJava,
+                revised.slice(to.start, to.end).asJava)
+          .getDeltas
+          .asScala
+          .foreach(d => diff.addDelta(shift(d, from.start, to.start)))
+    }
+    unified(original, diff, originalFile, revisedFile)
+  }
+
+  private def shift(delta: Delta[String],
+                    original: Int,
+                    revised: Int): Delta[String] = {
+    val o = delta.getOriginal
+    val r = delta.getRevised
+    val from = new Chunk(o.getPosition + original, o.getLines)
+    val to   = new Chunk(r.getPosition + revised, r.getLines)
+    delta.getType match {
+      case Delta.TYPE.CHANGE => new ChangeDelta(from, to)
+      case Delta.TYPE.DELETE => new DeleteDelta(from, to)
+      case Delta.TYPE.INSERT => new InsertDelta(from, to)
+    }
+  }
+
+  private def unified(original: Seq[String],
+                      diff: Patch[String],
+                      originalFile: File,
+                      revisedFile: File): String = {
     val originalInfo = originalFile
       .getAbsolutePath() + "\t" + fileModificationTimeOrEpoch(originalFile)
     val revisedInfo = revisedFile
       .getAbsolutePath() + "\t" + fileModificationTimeOrEpoch(revisedFile)
     if (diff.getDeltas.isEmpty) ""
     else
-      difflib.DiffUtils
+      DiffUtils
         .generateUnifiedDiff(originalInfo,
                              revisedInfo,
                              original.asJava,
@@ -26,20 +26,67 @@ object FileEditHelper {
       case _ => throw new UnsupportedOperationException(ch.toString)
     }
 
-  def applyEdits(ch: List[TextEdit], source: String): String =
-    (source /: ch.sortBy(-_.to)) { (src, change) =>
-      src.substring(0, change.from) + change.text + src.substring(change.to)
+  def applyEdits(ch: List[TextEdit], source: String): String = {
+    val result = new java.lang.StringBuilder(source)
+    ch.sortBy(-_.to).foreach { change =>
+      result.replace(change.from, change.to, change.text)
     }
+    result.toString
+  }
 
+  /**
+   * The edits say which lines changed, so only those lines (and not
+   * the whole file) are compared.
+   */
   def diffFromTextEdits(ch: List[TextEdit],
                         source: String,
                         originalFile: File,
                         revisedFile: File): String = {
-    val newContents = applyEdits(ch, source)
-    DiffUtil.compareContents(source.lines.toSeq,
-                             newContents.lines.toSeq,
-                             originalFile,
-                             revisedFile)
+    val original = source.lines.toIndexedSeq
+    val revised  = applyEdits(ch, source).lines.toIndexedSeq
+    DiffUtil.compareRegions(original,
+                            revised,
+                            regions(ch, source, original.size, revised.size),
+                            originalFile,
+                            revisedFile)
+  }
+
+  /**
+   * The lines of `source` that are touched by each group of edits on
+   * neighbouring lines, paired with the lines that replace them.
+   */
+  private[util] def regions(ch: List[TextEdit],
+                            source: String,
+                            originalLines: Int,
+                            revisedLines: Int): List[(Range, Range)] = {
+    val newlines = source.indices.filter(source(_) == '\n').toArray
+    def line(offset: Int): Int = {
+      val i = java.util.Arrays.binarySearch(newlines, offset)
+      if (i < 0) -i - 1 else i
+    }
+    def count(s: String) = s.count(_ == '\n')
+
+    // (first line, last line, change in the number of lines)
+    val groups = ch.sortBy(e => (e.from, e.to)).foldLeft(List.empty[(Int, Int, Int)]) {
+      (acc, edit) =>
+        val first = line(edit.from)
+        val last  = line(edit.to)
+        val delta = count(edit.text) - (last - first)
+        acc match {
+          case (f, l, d) :: rest if first <= l + 1 =>
+            (f, math.max(l, last), d + delta) :: rest
+          case _ => (first, last, delta) :: acc
+        }
+    }.reverse
+
+    groups.foldLeft((0, List.empty[(Range, Range)])) {
+      case ((shift, acc), (first, last, delta)) =>
+        val from = math.min(first, originalLines) until
+          math.min(last + 1, originalLines)
+        val to = math.min(first + shift, revisedLines) until
+          math.min(last + 1 + shift + delta, revisedLines)
+        (shift + delta, (from, to) :: acc)
+    }._2.reverse
   }
 
   def diffFromNewFile(newFile: NewFile,
@@ -5,6 +5,9 @@ package org.ensime.util
 import java.io._
 import java.nio.charset.Charset
 
+import scala.concurrent.{ blocking, Await, ExecutionContext, Future }
+import scala.concurrent.duration.Duration
+
 import org.ensime.api._
 import org.ensime.util.file._
 
@@ -62,54 +65,72 @@ object FileUtils {
     }
   }
 
+  /**
+   * A patch with the diff of every file, in the order of the files.
+   * The diffs are made in parallel and each is written to the patch
+   * as soon as it and the diffs before it are ready, rather than
+   * joining the patch of a project-wide change into one String.
+   * Reading and diffing the files blocks threads of `ec`.
+   */
   def writeDiffChanges(
     changes: List[FileEdit],
     renameFromTo: Option[(File, File)] = None
-  )(implicit cs: Charset): Either[Exception, File] = {
+  )(implicit cs: Charset, ec: ExecutionContext): Either[Exception, File] = {
     //sorted for the sake of testing, because otherwise the order of files in diff is not well defined
     val editsByFile =
       scala.collection.immutable.SortedMap(changes.groupBy(_.file).toSeq: _*)
-    try {
-      val diffContents =
-        editsByFile.map {
-          case (file, (nf @ NewFile(newFile, _, _, _)) :: Nil) =>
-            val Some((from, to)) = renameFromTo
-            readFile(from)(cs) match {
-              case Right(contents) =>
-                val edits = editsByFile(from).collect {
-                  case ed: TextEdit => ed
-                }
-                FileEditHelper.diffFromNewFile(nf, edits, contents)
-              case Left(e) => throw e
-            }
-          case (file, fileChanges) =>
-            val textEdits = fileChanges.collect { case ed: TextEdit => ed }
-            val deleteFile = fileChanges.collectFirst {
-              case delete: DeleteFile => delete
-            }
-            readFile(file)(cs) match {
-              case Right(contents) =>
-                deleteFile match {
-                  //ignore text changes if the file is being deleted
-                  case Some(deletion) =>
-                    FileEditHelper.diffFromDeleteFile(deletion, contents)
-                  case None =>
-                    FileEditHelper.diffFromTextEdits(textEdits,
-                                                     contents,
-                                                     file,
-                                                     file)
-                }
-              case Left(e) => throw e
-            }
-        }.mkString("\n")
 
-      Right({
-        val diffFile = java.io.File.createTempFile("ensime-diff-", ".tmp").canon
-        diffFile.writeString(diffContents)(cs)
-        diffFile
-      })
+    def diff(file: File, fileChanges: List[FileEdit]): String =
+      fileChanges match {
+        case (nf @ NewFile(newFile, _, _, _)) :: Nil =>
+          val Some((from, to)) = renameFromTo
+          readFile(from)(cs) match {
+            case Right(contents) =>
+              val edits = editsByFile(from).collect {
+                case ed: TextEdit => ed
+              }
+              FileEditHelper.diffFromNewFile(nf, edits, contents)
+            case Left(e) => throw e
+          }
+        case _ =>
+          val textEdits = fileChanges.collect { case ed: TextEdit => ed }
+          val deleteFile = fileChanges.collectFirst {
+            case delete: DeleteFile => delete
+          }
+          readFile(file)(cs) match {
+            case Right(contents) =>
+              deleteFile match {
+                //ignore text changes if the file is being deleted
+                case Some(deletion) =>
+                  FileEditHelper.diffFromDeleteFile(deletion, contents)
+                case None =>
+                  FileEditHelper.diffFromTextEdits(textEdits,
+                                                   contents,
+                                                   file,
+                                                   file)
+              }
+            case Left(e) => throw e
+          }
+      }
+
+    val diffFile = java.io.File.createTempFile("ensime-diff-", ".tmp").canon
+    try {
+      val diffs = editsByFile.toList.map {
+        case (file, fileChanges) => Future(blocking(diff(file, fileChanges)))
+      }
+      val out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(diffFile), cs)
+      )
+      try diffs.zipWithIndex.foreach {
+        case (d, i) =>
+          if (i > 0) out.write("\n")
+          out.write(Await.result(d, Duration.Inf))
+      } finally out.close()
+      Right(diffFile)
     } catch {
-      case e: Exception => Left(e)
+      case e: Exception =>
+        diffFile.delete()
+        Left(e)
     }
   }
 
@@ -0,0 +1,227 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+import java.lang.management.{ ManagementFactory, MemoryType }
+import java.util.concurrent.{
+  CopyOnWriteArrayList,
+  Executors,
+  ScheduledExecutorService,
+  TimeUnit
+}
+import javax.management.{
+  Notification,
+  NotificationEmitter,
+  NotificationListener
+}
+import javax.management.openmbean.CompositeData
+
+import com.sun.management.GarbageCollectionNotificationInfo
+
+import scala.collection.JavaConverters._
+import scala.concurrent.{ Future, Promise }
+import scala.util.Try
+import scala.util.control.NonFatal
+
+import akka.event.slf4j.SLF4JLogging
+import org.ensime.api._
+
+/**
+ * Decides how much background work the server can afford, based on
+ * the old generation that is still in use after it was last collected
+ * (young collections leave its garbage in place, so it may look full
+ * long before it needs to be). Background work asks before it starts:
+ * above the `high` watermark it is done in smaller batches, above
+ * `critical` it waits and only interactive requests are analysed.
+ *
+ * The old generation is collected by full collections and, with G1, by
+ * mixed collections that are reported as minor: any collection that
+ * shrinks it is used. Its collection usage is also sampled
+ * periodically, at every level, in case a notification was missed.
+ *
+ * A level is only left when usage falls a little below its watermark,
+ * so that we don't flap around it. A server that has gone quiet may
+ * never collect again, so a critical level is relaxed when there have
+ * been no collections since the last sample.
+ *
+ * Thread safe.
+ */
+final class MemoryGovernor(config: MemoryConfig) extends SLF4JLogging {
+  import MemoryGovernor._
+
+  val metrics = new Metrics("Memory")
+
+  @volatile private[this] var current: HeapPressure = HeapNormal
+  // completed when the pressure is no longer critical
+  @volatile private[this] var relief = Promise[Unit]().success(())
+  private[this] val listeners =
+    new CopyOnWriteArrayList[(HeapPressure, Long, Long) => Unit]
+  private[this] var lastUsed, lastMax = 0L
+  // the number of collections at the last re-check
+  private[this] var collections = -1L
+  private[this] var rechecks: Option[ScheduledExecutorService] = None
+
+  def enabled: Boolean = config.high > 0 || config.critical > 0
+
+  def pressure: HeapPressure = current
+
+  /** Called with the pressure, used and max MB when the pressure changes. */
+  def onChange(listener: (HeapPressure, Long, Long) => Unit): Unit =
+    listeners.add(listener)
+
+  /** Completes when background work may continue. */
+  def relieved(): Future[Unit] = relief.future
+
+  /** How many items background work should take on at once. */
+  def batchSize(configured: Int): Int = current match {
+    case HeapNormal   => configured
+    case HeapHigh     => math.max(1, configured / 4)
+    case HeapCritical => 1
+  }
+
+  private[util] def update(used: Long, max: Long): Unit = synchronized {
+    val usage = if (max <= 0) 0.0 else used.toDouble / max
+    lastUsed = used
+    lastMax = max
+    metrics.gauge("heap.usedMb", used / Mb)
+    metrics.gauge("heap.percent", (usage * 100).toLong)
+    change(MemoryGovernor.next(current, usage, config))
+  }
+
+  /**
+   * If there have been collections since the last re-check, the level
+   * is updated from the usage after the latest of them (`sample`). If
+   * there have been none, we are not allocating and nothing will tell
+   * us that the pressure has gone: a critical level is relaxed to high
+   * so that background work continues, slowly, instead of waiting for
+   * a collection that may never come.
+   */
+  private[util] def recheck(collected: Long,
+                            sample: => Option[(Long, Long)]): Unit =
+    synchronized {
+      if (collected != collections)
+        sample.foreach { case (used, max) => update(used, max) }
+      else if (current == HeapCritical) {
+        metrics.increment("pressure.stale")
+        change(HeapHigh)
+      }
+      collections = collected
+    }
+
+  private[this] def change(next: HeapPressure): Unit =
+    if (next != current) {
+      val previous = current
+      current = next
+      metrics.increment(s"pressure.$next")
+      if (next == HeapCritical) relief = Promise[Unit]()
+      else if (previous == HeapCritical) relief.trySuccess(())
+      log.info(s"heap pressure is $next, ${metrics.summary}")
+      listeners.asScala.foreach { l =>
+        try l(next, lastUsed / Mb, lastMax / Mb)
+        catch {
+          case NonFatal(e) => log.warn("heap pressure listener failed", e)
+        }
+      }
+    }
+
+  private[this] val gcListener = new NotificationListener {
+    def handleNotification(n: Notification, handback: AnyRef): Unit =
+      if (n.getType == GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) {
+        val info = GarbageCollectionNotificationInfo.from(
+          n.getUserData.asInstanceOf[CompositeData]
+        )
+        val gc     = info.getGcInfo
+        val old    = tenured
+        val before = old.flatMap(n => Option(gc.getMemoryUsageBeforeGc.get(n)))
+        val after  = old.flatMap(n => Option(gc.getMemoryUsageAfterGc.get(n)))
+        // a young collection only promotes into the old generation
+        val collected = info.getGcAction == MajorGc ||
+          after.map(_.getUsed).sum < before.map(_.getUsed).sum
+        if (collected && after.nonEmpty) {
+          val max =
+            if (after.exists(_.getMax < 0)) Runtime.getRuntime.maxMemory
+            else after.map(_.getMax).sum
+          update(after.map(_.getUsed).sum, max)
+        }
+      }
+  }
+
+  private[this] def collectors: List[NotificationEmitter] =
+    ManagementFactory.getGarbageCollectorMXBeans.asScala.toList.collect {
+      case e: NotificationEmitter => e
+    }
+
+  private[this] def collectionCount: Long =
+    ManagementFactory.getGarbageCollectorMXBeans.asScala
+      .map(_.getCollectionCount)
+      .filter(_ > 0)
+      .sum
+
+  // the old generation after its latest collection
+  private[this] def sample: Option[(Long, Long)] = {
+    val pools = ManagementFactory.getMemoryPoolMXBeans.asScala.toList
+      .filter(p => tenured.contains(p.getName))
+      .flatMap(p => Option(p.getCollectionUsage))
+    if (pools.isEmpty) None
+    else if (pools.exists(_.getMax < 0))
+      Some((pools.map(_.getUsed).sum, Runtime.getRuntime.maxMemory))
+    else Some((pools.map(_.getUsed).sum, pools.map(_.getMax).sum))
+  }
+
+  def start(): Unit =
+    if (enabled) {
+      collectors.foreach(_.addNotificationListener(gcListener, null, null))
+      val executor = Executors.newSingleThreadScheduledExecutor { r =>
+        val t = new Thread(r, "ensime-memory-governor")
+        t.setDaemon(true)
+        t
+      }
+      executor.scheduleWithFixedDelay(
+        () => recheck(collectionCount, sample),
+        Recheck,
+        Recheck,
+        TimeUnit.SECONDS
+      )
+      synchronized(rechecks = Some(executor))
+    }
+
+  def stop(): Unit = {
+    collectors.foreach(c => Try(c.removeNotificationListener(gcListener)))
+    synchronized(rechecks).foreach(_.shutdownNow())
+    relief.trySuccess(())
+  }
+}
+
+object MemoryGovernor {
+  private val Mb      = 1024L * 1024L
+  private val MajorGc = "end of major GC"
+  // seconds between samples
+  private val Recheck = 10L
+
+  /**
+   * The old generation pools: the heap pools that support a usage
+   * threshold (eden and survivor spaces don't).
+   */
+  private def tenured: List[String] =
+    ManagementFactory.getMemoryPoolMXBeans.asScala.toList.collect {
+      case p if p.getType == MemoryType.HEAP && p.isUsageThresholdSupported =>
+        p.getName
+    }
+
+  // how far below a watermark usage must fall to leave its level
+  private val Slack = 0.05
+
+  private def above(usage: Double, watermark: Double): Boolean =
+    watermark > 0 && usage >= watermark
+
+  private[util] def next(current: HeapPressure,
+                         usage: Double,
+                         config: MemoryConfig): HeapPressure =
+    if (above(usage, config.critical)) HeapCritical
+    else if (current == HeapCritical && above(usage, config.critical - Slack))
+      HeapCritical
+    else if (above(usage, config.high)) HeapHigh
+    else if (current != HeapNormal && above(usage, config.high - Slack))
+      HeapHigh
+    else HeapNormal
+}
@@ -0,0 +1,74 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConverters._
+
+/**
+ * Minimal in-process counters and timers, summarised in the logs.
+ * There is no metrics library on the classpath and we don't want one.
+ */
+final class Metrics(val name: String) {
+  import Metrics._
+
+  private val timers   = new ConcurrentHashMap[String, Timer]()
+  private val counters = new ConcurrentHashMap[String, Counter]()
+
+  def time(key: String, millis: Long): Unit =
+    timers.computeIfAbsent(key, _ => new Timer).record(millis)
+
+  def timed[T](key: String)(f: => T): T = {
+    val start = System.nanoTime()
+    try f
+    finally time(key, (System.nanoTime() - start) / 1000000)
+  }
+
+  def increment(key: String, n: Long = 1): Unit =
+    counters.computeIfAbsent(key, _ => new Counter).add(n)
+
+  def gauge(key: String, value: Long): Unit =
+    counters.computeIfAbsent(key, _ => new Counter).set(value)
+
+  def count(key: String): Long =
+    Option(counters.get(key)).map(_.get).getOrElse(0L)
+
+  def timer(key: String): Option[TimerSummary] =
+    Option(timers.get(key)).map(_.summary)
+
+  def summary: String = {
+    val ts = timers.asScala.toList.sortBy(_._1).map {
+      case (k, t) => s"$k ${t.summary}"
+    }
+    val cs = counters.asScala.toList.sortBy(_._1).map {
+      case (k, c) => s"$k=${c.get}"
+    }
+    (ts ++ cs).mkString(s"$name: ", ", ", "")
+  }
+}
+
+object Metrics {
+  final case class TimerSummary(count: Long, totalMillis: Long, maxMillis: Long) {
+    def meanMillis: Long = if (count == 0) 0 else totalMillis / count
+    override def toString: String =
+      s"[n=$count mean=${meanMillis}ms max=${maxMillis}ms]"
+  }
+
+  private final class Timer {
+    private var count, total, max = 0L
+    def record(millis: Long): Unit = synchronized {
+      count += 1
+      total += millis
+      max = math.max(max, millis)
+    }
+    def summary: TimerSummary = synchronized(TimerSummary(count, total, max))
+  }
+
+  private final class Counter {
+    @volatile private var value = 0L
+    def add(n: Long): Unit      = synchronized(value += n)
+    def set(n: Long): Unit      = value = n
+    def get: Long               = value
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+import java.util.{ LinkedHashMap, Map => JMap }
+
+/**
+ * Bounded LRU of values derived from compiler types and symbols, e.g.
+ * the API models and rendered names, which are expensive to rebuild
+ * and requested over and over (every completion of a common type).
+ *
+ * Types and symbols are only meaningful for the compiler run that
+ * produced them, so entries are dropped as soon as `apply` sees a new
+ * run id. Values are computed outside the lock, since computing them
+ * may wait on the compiler: concurrent misses compute twice and the
+ * last one wins, which is harmless for immutable values.
+ *
+ * Thread safe.
+ */
+final class RunMemo(name: String, maxSize: Int) {
+  val metrics = new Metrics(name)
+
+  private[this] var run: Int = 0
+
+  private[this] val entries =
+    new LinkedHashMap[Any, Any](16, 0.75f, true) {
+      override def removeEldestEntry(e: JMap.Entry[Any, Any]): Boolean =
+        size() > maxSize
+    }
+
+  def apply[T](runId: Int, key: Any)(compute: => T): T = {
+    val cached = synchronized {
+      if (runId != run) {
+        if (!entries.isEmpty) metrics.increment("invalidated")
+        entries.clear()
+        run = runId
+      }
+      Option(entries.get(key))
+    }
+    cached match {
+      case Some(hit) =>
+        metrics.increment("hit")
+        hit.asInstanceOf[T]
+      case None =>
+        metrics.increment("miss")
+        val value = compute
+        synchronized {
+          if (runId == run) entries.put(key, value)
+        }
+        value
+    }
+  }
+
+  def size: Int = synchronized(entries.size)
+}
@@ -0,0 +1,63 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import scala.reflect.internal.util.BatchSourceFile
+import scala.reflect.io.VirtualFile
+
+import org.ensime.util.EnsimeSpec
+
+class AnalysisCacheSpec extends EnsimeSpec {
+  import AnalysisCache._
+
+  def source(path: String, content: String) =
+    new BatchSourceFile(new VirtualFile(path), content.toCharArray)
+
+  "AnalysisCache" should "reuse answers while the content is unchanged" in {
+    val cache = new AnalysisCache(10, 10)
+    var asked = 0
+    def answer(): Option[Int] = { asked += 1; Some(asked) }
+
+    cache(source("a.scala", "class A"), SymbolAt(1))(answer()) shouldBe Some(1)
+    cache(source("a.scala", "class A"), SymbolAt(1))(answer()) shouldBe Some(1)
+    cache(source("a.scala", "class A"), SymbolAt(2))(answer()) shouldBe Some(2)
+    cache(source("a.scala", "class B"), SymbolAt(1))(answer()) shouldBe Some(3)
+    asked shouldBe 3
+    cache.metrics.count("hit") shouldBe 1
+    cache.metrics.count("miss") shouldBe 3
+  }
+
+  it should "not mistake a different content with the same hash" in {
+    val cache = new AnalysisCache(10, 10)
+    // "Aa" and "BB" have the same hash code
+    java.util.Arrays.hashCode("Aa".toCharArray) shouldBe
+      java.util.Arrays.hashCode("BB".toCharArray)
+    cache(source("a.scala", "Aa"), Structure)(Some(1))
+    cache(source("a.scala", "BB"), Structure)(Some(2)) shouldBe Some(2)
+  }
+
+  it should "not keep missing answers" in {
+    val cache = new AnalysisCache(10, 10)
+    val a     = source("a.scala", "class A")
+    cache(a, Structure)(Option.empty[Int]) shouldBe None
+    cache(a, Structure)(Some(1)) shouldBe Some(1)
+  }
+
+  it should "forget everything on invalidate" in {
+    val cache = new AnalysisCache(10, 10)
+    val a     = source("a.scala", "class A")
+    cache(a, TypeAt(0, 1))(Some(1))
+    cache.invalidate()
+    cache.size shouldBe 0
+    cache(a, TypeAt(0, 1))(Some(2)) shouldBe Some(2)
+  }
+
+  it should "be bounded by the number of files" in {
+    val cache = new AnalysisCache(2, 10)
+    cache(source("a.scala", ""), Structure)(Some(1))
+    cache(source("b.scala", ""), Structure)(Some(2))
+    cache(source("c.scala", ""), Structure)(Some(3))
+    cache.size shouldBe 2
+    cache(source("a.scala", ""), Structure)(Some(4)) shouldBe Some(4)
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import java.io.File
+
+import akka.actor._
+import org.ensime.api._
+import org.ensime.fixture.SharedTestKitFixture
+import org.ensime.util.EnsimeSpec
+
+class AnalyzerQueueSpec extends EnsimeSpec with SharedTestKitFixture {
+  import AnalyzerQueueSpec._
+
+  val foo = SourceFileInfo(RawFile(new File("Foo.scala").toPath))
+  val bar = SourceFileInfo(RawFile(new File("Bar.scala").toPath))
+
+  def completions(f: SourceFileInfo, point: Int) =
+    CompletionsReq(f, point, 10, false, false)
+
+  "AnalyzerQueue" should "run interactive requests before highlighting and refactoring" in {
+    val queue = new AnalyzerQueue
+    val highlight =
+      SymbolDesignationsReq(Right(foo), 0, 100, List(ObjectSymbol))
+    val typeAt = TypeAtPointReq(Right(foo), OffsetRange(10))
+
+    queue.enqueue(highlight, ActorRef.noSender)
+    queue.enqueue(typeAt, ActorRef.noSender)
+    queue.enqueue(TypecheckFileReq(bar), ActorRef.noSender)
+
+    queue.dequeue().map(_.req) shouldBe Some(TypecheckFileReq(bar))
+    queue.dequeue().map(_.req) shouldBe Some(typeAt)
+    queue.dequeue().map(_.req) shouldBe Some(highlight)
+    queue.dequeue() shouldBe None
+  }
+
+  it should "supersede point queries on the same file" in {
+    val queue = new AnalyzerQueue
+    queue.enqueue(completions(foo, 1), ActorRef.noSender) shouldBe empty
+    queue.enqueue(completions(bar, 1), ActorRef.noSender) shouldBe empty
+    queue
+      .enqueue(completions(foo, 2), ActorRef.noSender)
+      .map(_.req) shouldBe List(completions(foo, 1))
+
+    queue.size shouldBe 2
+    queue.dequeue().map(_.req) shouldBe Some(completions(bar, 1))
+    queue.dequeue().map(_.req) shouldBe Some(completions(foo, 2))
+  }
+
+  it should "not change a file before the queries that were sent before" in {
+    val queue = new AnalyzerQueue
+    val highlight =
+      SymbolDesignationsReq(Right(bar), 0, 100, List(ObjectSymbol))
+    val typeAt = TypeAtPointReq(Right(foo), OffsetRange(10))
+
+    queue.enqueue(highlight, ActorRef.noSender)
+    queue.enqueue(typeAt, ActorRef.noSender)
+    queue.enqueue(TypecheckFileReq(foo), ActorRef.noSender)
+    queue.enqueue(completions(foo, 5), ActorRef.noSender)
+
+    queue.dequeue().map(_.req) shouldBe Some(typeAt)
+    queue.dequeue().map(_.req) shouldBe Some(TypecheckFileReq(foo))
+    queue.dequeue().map(_.req) shouldBe Some(completions(foo, 5))
+    queue.dequeue().map(_.req) shouldBe Some(highlight)
+    queue.dequeue() shouldBe None
+  }
+
+  it should "only supersede the queries of the same connection" in withTestKit {
+    fix =>
+      import fix._
+      val editor = system.actorOf(Props(new Connection), "editor")
+      val other  = system.actorOf(Props(new Connection), "other")
+      def call(connection: ActorRef, callId: Int): ActorRef = {
+        connection ! callId
+        expectMsgType[ActorRef]
+      }
+
+      val queue = new AnalyzerQueue
+      queue.enqueue(completions(foo, 1), call(editor, 1)) shouldBe empty
+      queue.enqueue(completions(foo, 2), call(other, 1)) shouldBe empty
+      queue
+        .enqueue(completions(foo, 3), call(editor, 2))
+        .map(_.req) shouldBe List(completions(foo, 1))
+      queue.size shouldBe 2
+  }
+
+  it should "shed the least interactive requests under memory pressure" in {
+    import AnalyzerQueue._
+    List(Control, Interactive, Highlighting, Background)
+      .filter(shed(_, HeapNormal)) shouldBe empty
+    List(Control, Interactive, Highlighting, Background)
+      .filter(shed(_, HeapHigh)) shouldBe List(Background)
+    List(Control, Interactive, Highlighting, Background)
+      .filter(shed(_, HeapCritical)) shouldBe List(Background)
+    List(Control, Interactive, Highlighting, Background)
+      .filter(defer(_, HeapHigh)) shouldBe empty
+    List(Control, Interactive, Highlighting, Background)
+      .filter(defer(_, HeapCritical)) shouldBe List(Highlighting)
+  }
+
+  it should "cancel queued requests" in {
+    val queue = new AnalyzerQueue
+    queue.enqueue(completions(foo, 1), ActorRef.noSender)
+    queue.enqueue(StructureViewReq(foo), ActorRef.noSender)
+
+    queue
+      .cancel(_.req.isInstanceOf[StructureViewReq])
+      .map(_.req) shouldBe List(StructureViewReq(foo))
+    queue.size shouldBe 1
+  }
+
+  "Analyzer.Cancel" should "only cancel the call of the connection that sent it" in {
+    val editor = ActorPath.fromString("akka://ensime/user/server/editor")
+    val other  = ActorPath.fromString("akka://ensime/user/server/other")
+    val cancel = Analyzer.Cancel(editor, 3)
+
+    cancel.of(editor / "3") shouldBe true
+    cancel.of(other / "3") shouldBe false
+    cancel.of(editor / "4") shouldBe false
+  }
+}
+
+object AnalyzerQueueSpec {
+  // stands in for a connection, the parent of the handler of every call
+  class Connection extends Actor {
+    def receive: Receive = {
+      case callId: Int => sender() ! context.actorOf(Props.empty, s"$callId")
+    }
+  }
+}
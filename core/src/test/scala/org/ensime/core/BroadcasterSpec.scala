@@ -61,4 +61,52 @@ class BroadcasterSpec extends EnsimeSpec with SharedTestKitFixture {
     sub1.lastSender shouldBe self
   }
 
+  it should "only replay the latest persistent message of each type" in withTestKit {
+    fix =>
+      import fix._
+      val broadcaster = TestActorRef(new Broadcaster(2))
+      val sub1        = TestProbe()
+
+      broadcaster ! Persist("first")
+      broadcaster ! Persist(1)
+      broadcaster ! Persist("second")
+
+      sub1.send(broadcaster, Register)
+      sub1.expectMsg(1)
+      sub1.expectMsg("second")
+      sub1.expectNoMessage(1 second)
+
+      // and drop the oldest type when full
+      broadcaster ! Persist('third)
+      sub1.expectMsg('third)
+      val sub2 = TestProbe()
+      sub2.send(broadcaster, Register)
+      sub2.expectMsg("second")
+      sub2.expectMsg('third)
+      sub2.expectNoMessage(1 second)
+  }
+
+  it should "send the same Shared to shared subscribers" in withTestKit { fix =>
+    import fix._
+    val broadcaster = TestActorRef[Broadcaster]
+    val sub1        = TestProbe()
+    val sub2        = TestProbe()
+
+    sub1.send(broadcaster, RegisterShared)
+    sub2.send(broadcaster, RegisterShared)
+
+    broadcaster ! ping
+
+    val shared = sub1.expectMsgType[Shared]
+    shared.message shouldBe ping
+    sub1.lastSender shouldBe self
+    sub2.expectMsgType[Shared] should be theSameInstanceAs shared
+
+    var encodings = 0
+    def encode(): String = { encodings += 1; ping.toUpperCase }
+    shared.encoded("upper")(encode()) shouldBe "PING"
+    shared.encoded("upper")(encode()) shouldBe "PING"
+    encodings shouldBe 1
+  }
+
 }
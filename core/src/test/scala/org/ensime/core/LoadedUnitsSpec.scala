@@ -0,0 +1,54 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import org.ensime.api.EnsimeFile
+import org.ensime.util.EnsimeSpec
+
+class LoadedUnitsSpec extends EnsimeSpec {
+  val a = EnsimeFile("/a.scala")
+  val b = EnsimeFile("/b.scala")
+  val c = EnsimeFile("/c.scala")
+
+  "LoadedUnits" should "evict the least recently used files beyond the count" in {
+    val units = new LoadedUnits(maxLoaded = 2, maxRetainedBytes = 0)
+    units.touch(a, 10, pin = false)
+    units.touch(b, 10, pin = false)
+    units.touch(a, 10, pin = false)
+    units.evict() shouldBe Nil
+    units.touch(c, 10, pin = false)
+    units.evict() shouldBe List(b)
+    units.size shouldBe 2
+  }
+
+  it should "evict beyond the estimated retained size" in {
+    val units = new LoadedUnits(0, 25 * LoadedUnits.BytesPerChar)
+    units.touch(a, 10, pin = false)
+    units.touch(b, 10, pin = false)
+    units.touch(c, 10, pin = false)
+    units.evict() shouldBe List(a)
+    units.retainedBytes shouldBe 20 * LoadedUnits.BytesPerChar
+  }
+
+  it should "never evict pinned files" in {
+    val units = new LoadedUnits(1, 0)
+    units.touch(a, 10, pin = true)
+    units.touch(b, 10, pin = false)
+    units.touch(a, 10, pin = false)
+    units.evict() shouldBe List(b)
+    units.pinned shouldBe Set(a)
+    units.touch(c, 10, pin = true)
+    units.evict() shouldBe Nil
+    units.size shouldBe 2
+  }
+
+  it should "report files that are loaded again after eviction" in {
+    val units = new LoadedUnits(1, 0)
+    units.touch(a, 10, pin = false) shouldBe false
+    units.touch(b, 10, pin = false) shouldBe false
+    units.evict() shouldBe List(a)
+    units.touch(a, 10, pin = false) shouldBe true
+    units.remove(b)
+    units.touch(b, 10, pin = false) shouldBe false
+  }
+}
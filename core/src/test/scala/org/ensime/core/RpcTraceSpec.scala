@@ -0,0 +1,80 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.core
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Files
+
+import scala.collection.JavaConverters._
+
+import spray.json.CompactPrinter
+import org.ensime.api._
+import org.ensime.util.EnsimeSpec
+import org.ensime.util.file._
+
+class RpcTraceSpec extends EnsimeSpec {
+  import RpcTrace._
+
+  "RpcTrace" should "read entries in order, moved to another root" in withTempDir {
+    tmp =>
+      val recorded = (tmp / "recorded").toPath
+      val replayed = (tmp / "replayed").toPath
+      val foo      = recorded.resolve("src/Foo.scala")
+      val typing = TypecheckFileReq(
+        SourceFileInfo(RawFile(foo), Some("object Foo"))
+      )
+      val saving = TypecheckFilesReq(List(Left(foo.toFile)))
+      val entries = List(
+        Entry(20, "$a", saving, Some(300), None),
+        Entry(10, "$a", typing, Some(5), Some("boom")),
+        Entry(15, "lsp", ConnectionInfoReq, None, None)
+      )
+      val trace = tmp / "trace.json"
+      Files.write(
+        trace.toPath,
+        (header(recorded) :: entries.map(writeEntry(_))).map(CompactPrinter(_)).asJava,
+        UTF_8
+      )
+
+      val moved = replayed.resolve("src/Foo.scala")
+      read(trace.toPath, replayed) shouldBe List(
+        Entry(10,
+              "$a",
+              TypecheckFileReq(
+                SourceFileInfo(RawFile(moved), Some("object Foo"))
+              ),
+              Some(5),
+              Some("boom")),
+        Entry(15, "lsp", ConnectionInfoReq, None, None),
+        Entry(20,
+              "$a",
+              TypecheckFilesReq(List(Left(moved.toFile))),
+              Some(300),
+              None)
+      )
+  }
+
+  it should "add the answers to the requests that were answered" in withTempDir {
+    tmp =>
+      val root  = (tmp / "root").toPath
+      val trace = tmp / "trace.json"
+      Files.write(
+        trace.toPath,
+        List(
+          header(root),
+          writeEntry(Entry(10, "$a", ConnectionInfoReq, None, None), Some(1)),
+          writeEntry(Entry(12, "$b", ConnectionInfoReq, None, None), Some(2)),
+          writeAnswer(1, 40, Some("boom")),
+          writeEntry(Entry(50, "$a", ConnectionInfoReq, None, None), Some(3)),
+          writeAnswer(3, 5, None)
+        ).map(CompactPrinter(_)).asJava,
+        UTF_8
+      )
+
+      read(trace.toPath, root) shouldBe List(
+        Entry(10, "$a", ConnectionInfoReq, Some(40), Some("boom")),
+        Entry(12, "$b", ConnectionInfoReq, None, None),
+        Entry(50, "$a", ConnectionInfoReq, Some(5), None)
+      )
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.filewatcher
+
+import java.io.File
+
+import org.ensime.util.EnsimeSpec
+
+class FileEventCoalescerSpec extends EnsimeSpec {
+  import FileChange._
+
+  val foo = new File("foo.class")
+
+  def net(changes: FileChange*): Option[FileChange] =
+    changes.foldLeft(Option.empty[FileChange])(FileEventCoalescer.merge)
+
+  "FileEventCoalescer" should "keep a single event" in {
+    net(Added(foo)) shouldBe Some(Added(foo))
+    net(Changed(foo)) shouldBe Some(Changed(foo))
+    net(Removed(foo)) shouldBe Some(Removed(foo))
+  }
+
+  it should "collapse repeated modifications" in {
+    net(Added(foo), Changed(foo), Changed(foo)) shouldBe Some(Added(foo))
+    net(Changed(foo), Changed(foo)) shouldBe Some(Changed(foo))
+  }
+
+  it should "cancel a file that was created and deleted" in {
+    net(Added(foo), Changed(foo), Removed(foo)) shouldBe None
+  }
+
+  it should "treat a replaced file as a change" in {
+    net(Removed(foo), Added(foo)) shouldBe Some(Changed(foo))
+    net(Changed(foo), Removed(foo)) shouldBe Some(Removed(foo))
+  }
+}
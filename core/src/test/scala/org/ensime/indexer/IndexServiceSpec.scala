@@ -0,0 +1,56 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import org.ensime.util.EnsimeSpec
+
+class IndexServiceSpec extends EnsimeSpec {
+  import IndexService._
+
+  def matches(query: String, fqn: String): Boolean =
+    humpQueryTerms(query).exists(_.forall(humpTerms(fqn)))
+
+  "IndexService" should "index the edge n-grams of camelCase humps" in {
+    humpTerms("java.lang.Runtime.addShutdownHook(Ljava/lang/Thread;)V") shouldBe Set(
+      "0:a",
+      "0:ad",
+      "0:add",
+      "1:s",
+      "1:sh",
+      "1:shu",
+      "1:shut",
+      "1:shutd",
+      "1:shutdo",
+      "1:shutdow",
+      "1:shutdown",
+      "2:h",
+      "2:ho",
+      "2:hoo",
+      "2:hook"
+    )
+  }
+
+  it should "only treat multi-hump queries as camelCase" in {
+    humpQueryTerms("aSHook") shouldBe Some(List("0:a", "1:s", "2:hook"))
+    humpQueryTerms("String") shouldBe None
+    humpQueryTerms("caseclasswith") shouldBe None
+    humpQueryTerms("o.e.CaseClass") shouldBe None
+    humpQueryTerms("o e CaseClass") shouldBe None
+  }
+
+  it should "match leading humps by prefix" in {
+    val fqn = "org.example.CaseClassWithCamelCaseName"
+    matches("CCWC", fqn) shouldBe true
+    matches("CasClWiCCNa", fqn) shouldBe true
+    matches("CaseName", fqn) shouldBe false
+
+    val method = "java.lang.Runtime.availableProcessors()I"
+    matches("aProc", method) shouldBe true
+    matches("avaPro", method) shouldBe true
+    matches("aThreads", method) shouldBe false
+  }
+
+  it should "match the parts of nested names" in {
+    matches("WiBa", "org.example2.Baz$WibbleBar$baz") shouldBe true
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import java.io.File
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{ Files, Path }
+import java.sql.Timestamp
+
+import org.ensime.indexer.graph.FileCheck
+import org.ensime.util.EnsimeSpec
+import org.ensime.util.file._
+
+class IndexSnapshotSpec extends EnsimeSpec {
+  import IndexSnapshot._
+
+  val dirs = List("index-1", "graph-1")
+  val roots = List("/project", "/jdk")
+  val manifest = SnapshotManifest(
+    "1",
+    roots,
+    List(
+      FileCheck("file:///foo bar.jar", new Timestamp(1000L)),
+      FileCheck("file:///baz.jar", new Timestamp(2000L))
+    )
+  )
+  val unchanged: FileCheck => Boolean = _ => false
+
+  def snapshot(tmp: File): Path = {
+    val cache    = (tmp / "cache").toPath
+    val snapshot = (tmp / "snapshot.zip").toPath
+    Files.createDirectories(cache.resolve("index-1"))
+    Files.createDirectories(cache.resolve("graph-1/sub"))
+    Files.write(cache.resolve("index-1/segments_1"), "lucene".getBytes(UTF_8))
+    Files.write(cache.resolve("index-1/write.lock"), Array.empty[Byte])
+    Files.write(cache.resolve("graph-1/sub/data"), "orient".getBytes(UTF_8))
+    write(cache, dirs, manifest, snapshot)
+    snapshot
+  }
+
+  "IndexSnapshot" should "restore what it wrote into an empty cache" in withTempDir {
+    tmp =>
+      val zip   = snapshot(tmp)
+      val fresh = (tmp / "fresh").toPath
+      restore(zip, fresh, dirs, "1", roots, unchanged) shouldBe Some(manifest)
+      new String(Files.readAllBytes(fresh.resolve("index-1/segments_1")), UTF_8) shouldBe "lucene"
+      new String(Files.readAllBytes(fresh.resolve("graph-1/sub/data")), UTF_8) shouldBe "orient"
+      Files.exists(fresh.resolve("index-1/write.lock")) shouldBe false
+      fresh.toFile.list().toSet shouldBe dirs.toSet
+
+      restore(zip, fresh, dirs, "1", roots, unchanged) shouldBe None // not empty
+      restore(zip, (tmp / "other").toPath, dirs, "2", roots, unchanged) shouldBe None
+  }
+
+  it should "not restore a snapshot that was taken elsewhere" in withTempDir {
+    tmp =>
+      val zip   = snapshot(tmp)
+      val fresh = (tmp / "fresh").toPath
+      val moved = List("/home/ci/project", "/jdk")
+      restore(zip, fresh, dirs, "1", moved, unchanged) shouldBe None
+      restore(zip, fresh, dirs, "1", roots, _ => true) shouldBe None
+      Files.exists(fresh.resolve("index-1")) shouldBe false
+      Files.exists(fresh.resolve("graph-1")) shouldBe false
+
+      val partly: FileCheck => Boolean = _.filename == "file:///baz.jar"
+      restore(zip, fresh, dirs, "1", roots, partly) shouldBe Some(manifest)
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import scala.concurrent.{ ExecutionContext, Future, Promise }
+
+import org.ensime.util.EnsimeSpec
+
+class QueryCacheSpec extends EnsimeSpec {
+  implicit val ec: ExecutionContext = ExecutionContext.Implicits.global
+
+  "QueryCache" should "share results for the same key" in {
+    val cache = new QueryCache(10)
+    var runs  = 0
+    def query(): Future[Int] = { runs += 1; Future.successful(runs) }
+
+    cache("a")(query()) shouldBe cache("a")(query())
+    runs shouldBe 1
+    cache("b")(query())
+    runs shouldBe 2
+  }
+
+  it should "forget everything on invalidate" in {
+    val cache = new QueryCache(10)
+    cache("a")(Future.successful(1))
+    cache.invalidate()
+    cache.size shouldBe 0
+    cache("a")(Future.successful(2)).value.get.get shouldBe 2
+  }
+
+  it should "not remember queries that span an invalidation" in {
+    val cache   = new QueryCache(10)
+    val pending = Promise[Int]()
+    cache("a")(pending.future)
+    cache.invalidate()
+    pending.success(1)
+    cache("a")(Future.successful(2)).value.get.get shouldBe 2
+  }
+
+  it should "not cache failures" in {
+    val cache  = new QueryCache(10)
+    val failed = Promise[Int]()
+    cache("a")(failed.future)
+    failed.failure(new IllegalStateException)
+    eventually {
+      cache.size shouldBe 0
+    }
+  }
+
+  it should "evict the least recently used entry" in {
+    val cache = new QueryCache(2)
+    cache("a")(Future.successful(1))
+    cache("b")(Future.successful(2))
+    cache("a")(Future.successful(0))
+    cache("c")(Future.successful(3))
+    cache.size shouldBe 2
+    cache("a")(Future.successful(0)).value.get.get shouldBe 1
+    cache("b")(Future.successful(0)).value.get.get shouldBe 0
+  }
+}
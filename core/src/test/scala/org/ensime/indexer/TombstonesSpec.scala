@@ -0,0 +1,45 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.indexer
+
+import org.ensime.util.EnsimeSpec
+
+class TombstonesSpec extends EnsimeSpec {
+
+  "Tombstones" should "kill earlier generations of a superseded file" in {
+    val t = new Tombstones
+    t.isLive("a", 0) shouldBe true
+    t.supersede("a") shouldBe 1
+    t.isLive("a", 0) shouldBe false
+    t.isLive("a", 1) shouldBe true
+    t.isLive("b", 0) shouldBe true
+  }
+
+  it should "remember what needs to be compacted" in {
+    val t = new Tombstones
+    t.supersede("a")
+    t.supersede("b")
+    t.pending shouldBe Map("a" -> 1L, "b" -> 1L)
+    t.compacted("a", 1)
+    t.pending shouldBe Map("b" -> 1L)
+  }
+
+  it should "not lose a supersede that happens during compaction" in {
+    val t = new Tombstones
+    t.supersede("a")
+    t.supersede("a")
+    t.compacted("a", 1)
+    t.pending shouldBe Map("a" -> 2L)
+  }
+
+  it should "restore generations that were not compacted" in {
+    val t = new Tombstones
+    t.restore("a", generation = 2, compacted = 2)
+    t.restore("b", generation = 3, compacted = 1)
+    t.isLive("a", 1) shouldBe false
+    t.pending shouldBe Map("b" -> 3L)
+    t.forget("b")
+    t.pending shouldBe Map.empty
+    t.isLive("b", 0) shouldBe true
+  }
+}
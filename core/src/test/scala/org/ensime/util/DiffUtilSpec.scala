@@ -4,6 +4,8 @@ package org.ensime.util
 
 import java.io.File
 
+import org.ensime.api.TextEdit
+
 class DiffUtilSpec extends EnsimeSpec {
   "DiffUtil" should "compare original and revised contents and produce a diff in the unified format" in {
     val originalContent =
@@ -31,4 +33,37 @@ class DiffUtilSpec extends EnsimeSpec {
 
     diff should ===(expectedDiff)
   }
+
+  it should "only compare the regions that were edited" in {
+    val original = (1 to 20).map(i => s"line$i")
+    val revised  = original.updated(2, "new-line3").updated(15, "new-line16")
+    val regions  = List((2 until 3, 2 until 3), (15 until 16, 15 until 16))
+
+    DiffUtil.compareRegions(original, revised, regions) should ===(
+      DiffUtil.compareContents(original, revised)
+    )
+  }
+
+  "FileEditHelper" should "diff text edits like a diff of the contents" in {
+    val source = (1 to 30).map(i => s"val foo$i = $i").mkString("", "\n", "\n")
+    val file   = new File("a")
+    def edit(text: String, replaced: String, by: String) = {
+      val from = source.indexOf(text)
+      TextEdit(file, from, from + replaced.length, by)
+    }
+    val edits = List(
+      edit("foo3 ", "foo3", "bar3"),
+      edit("foo4 ", "foo4 = 4\n", ""),
+      edit("foo20 ", "", "// inserted\n"),
+      edit("foo30 ", "foo30 = 30\n", "foo30 = 30\nval baz = 31")
+    )
+    val revised = FileEditHelper.applyEdits(edits, source)
+
+    FileEditHelper.diffFromTextEdits(edits, source, file, file) should ===(
+      DiffUtil.compareContents(source.lines.toSeq,
+                               revised.lines.toSeq,
+                               file,
+                               file)
+    )
+  }
 }
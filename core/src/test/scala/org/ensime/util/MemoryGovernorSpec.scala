@@ -0,0 +1,80 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+import scala.collection.mutable.ListBuffer
+
+import org.ensime.api._
+
+class MemoryGovernorSpec extends EnsimeSpec {
+  val config = MemoryConfig(high = 0.75, critical = 0.9)
+  val Mb     = 1024L * 1024L
+
+  "MemoryGovernor" should "change pressure at the watermarks, with slack" in {
+    import MemoryGovernor.next
+    next(HeapNormal, 0.74, config) shouldBe HeapNormal
+    next(HeapNormal, 0.8, config) shouldBe HeapHigh
+    next(HeapNormal, 0.95, config) shouldBe HeapCritical
+    next(HeapCritical, 0.87, config) shouldBe HeapCritical
+    next(HeapCritical, 0.8, config) shouldBe HeapHigh
+    next(HeapHigh, 0.72, config) shouldBe HeapHigh
+    next(HeapHigh, 0.6, config) shouldBe HeapNormal
+    next(HeapNormal, 0.99, MemoryConfig(0, 0)) shouldBe HeapNormal
+  }
+
+  it should "throttle, pause and report background work" in {
+    val governor = new MemoryGovernor(config)
+    val reported = ListBuffer.empty[(HeapPressure, Long, Long)]
+    governor.onChange((p, used, max) => reported += ((p, used, max)))
+
+    governor.batchSize(100) shouldBe 100
+    governor.relieved().isCompleted shouldBe true
+
+    governor.update(80 * Mb, 100 * Mb)
+    governor.pressure shouldBe HeapHigh
+    governor.batchSize(100) shouldBe 25
+
+    governor.update(95 * Mb, 100 * Mb)
+    governor.batchSize(100) shouldBe 1
+    val paused = governor.relieved()
+    paused.isCompleted shouldBe false
+
+    governor.update(50 * Mb, 100 * Mb)
+    paused.isCompleted shouldBe true
+    governor.pressure shouldBe HeapNormal
+
+    reported.toList shouldBe List(
+      (HeapHigh, 80L, 100L),
+      (HeapCritical, 95L, 100L),
+      (HeapNormal, 50L, 100L)
+    )
+    governor.metrics.count("pressure.HeapCritical") shouldBe 1
+    governor.metrics.count("heap.percent") shouldBe 50
+  }
+
+  it should "relax a critical level that no collection has confirmed" in {
+    val governor = new MemoryGovernor(config)
+    governor.update(95 * Mb, 100 * Mb)
+    governor.recheck(1, Some((95 * Mb, 100 * Mb)))
+    governor.pressure shouldBe HeapCritical
+
+    // collections since the last check: trust the new measurement
+    governor.recheck(2, Some((92 * Mb, 100 * Mb)))
+    governor.pressure shouldBe HeapCritical
+
+    // none: the server has gone quiet, don't wait for one
+    val paused = governor.relieved()
+    governor.recheck(2, fail("nothing to sample"))
+    governor.pressure shouldBe HeapHigh
+    paused.isCompleted shouldBe true
+    governor.metrics.count("pressure.stale") shouldBe 1
+  }
+
+  it should "raise the level from a sample, without a notification" in {
+    val governor = new MemoryGovernor(config)
+    governor.recheck(1, Some((80 * Mb, 100 * Mb)))
+    governor.pressure shouldBe HeapHigh
+    governor.recheck(1, fail("nothing to sample"))
+    governor.pressure shouldBe HeapHigh
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.util
+
+class RunMemoSpec extends EnsimeSpec {
+
+  "RunMemo" should "reuse values within a run" in {
+    val memo  = new RunMemo("test", 10)
+    var calls = 0
+    def lookup(key: String) = memo(1, key) { calls += 1; key.length }
+
+    lookup("foo") shouldBe 3
+    lookup("foo") shouldBe 3
+    lookup("bazz") shouldBe 4
+    calls shouldBe 2
+    memo.metrics.count("hit") shouldBe 1
+    memo.metrics.count("miss") shouldBe 2
+  }
+
+  it should "forget everything when the run changes" in {
+    val memo  = new RunMemo("test", 10)
+    var calls = 0
+    memo(1, "foo") { calls += 1; "one" } shouldBe "one"
+    memo(2, "foo") { calls += 1; "two" } shouldBe "two"
+    memo(2, "foo") { calls += 1; "three" } shouldBe "two"
+    calls shouldBe 2
+    memo.size shouldBe 1
+    memo.metrics.count("invalidated") shouldBe 1
+  }
+
+  it should "evict the least recently used values" in {
+    val memo = new RunMemo("test", 2)
+    memo(1, "a")(1)
+    memo(1, "b")(2)
+    memo(1, "a")(0) shouldBe 1
+    memo(1, "c")(3)
+    memo.size shouldBe 2
+    memo(1, "b")(-2) shouldBe -2
+    memo(1, "a")(0) shouldBe 0
+  }
+
+  it should "not remember values computed for an earlier run" in {
+    val memo = new RunMemo("test", 10)
+    memo(1, "outer") {
+      memo(2, "inner")("new")
+      "old"
+    } shouldBe "old"
+    memo(2, "outer")("fresh") shouldBe "fresh"
+  }
+}
@@ -292,6 +292,9 @@ class EnsimeLanguageServer(in: InputStream, out: OutputStream)
             completions
               .sortBy(-_.relevance)
               .map(EnsimeLanguageServer.toCompletion)
+          case EnsimeServerError(description) =>
+            log.info(s"No completions: $description")
+            Nil
         }
       }
 
@@ -357,6 +360,9 @@ class EnsimeLanguageServer(in: InputStream, out: OutputStream)
               case _ =>
                 Seq()
             }
+          case EnsimeServerError(description) =>
+            log.info(s"No definition: $description")
+            Seq()
         }
       }
 
@@ -397,6 +403,9 @@ class EnsimeLanguageServer(in: InputStream, out: OutputStream)
           case None =>
             log.info(s"No signature")
             Hover(Seq.empty, None)
+          case EnsimeServerError(description) =>
+            log.info(s"No signature: $description")
+            Hover(Seq.empty, None)
         }
       }
     res.map(f => Await.result(f, 5 seconds)).getOrElse(Hover(Nil, None))
@@ -464,6 +473,9 @@ class EnsimeLanguageServer(in: InputStream, out: OutputStream)
             case StructureView(members) =>
               log.debug(s"got back: $members")
               members.flatMap(m => toSymbolInformation(m, None))
+            case EnsimeServerError(description) =>
+              log.info(s"No document symbols: $description")
+              Nil
           }
         }
       res.map(f => Await.result(f, 5 seconds)).getOrElse(Seq.empty)
@@ -5,7 +5,7 @@ package org.ensime.lsp.ensime
 import akka.actor.Actor
 import akka.event.slf4j.SLF4JLogging
 import org.ensime.api._
-import org.ensime.core.{ Broadcaster, Project }
+import org.ensime.core.{ Broadcaster, Project, RpcTrace }
 
 import scala.collection.mutable.ListBuffer
 
@@ -17,12 +17,17 @@ class EnsimeProjectServer(langServer: EnsimeLanguageServer,
 
   private val broadcaster = context.actorOf(Broadcaster(), "broadcaster")
   private val project     = context.actorOf(Project(broadcaster), "project")
+  // responses go straight back to the language server, so only the
+  // requests are recorded
+  private val trace = RpcTrace.forConfig
 
   override def preStart(): Unit =
     broadcaster ! Broadcaster.Register
 
-  override def postStop(): Unit =
+  override def postStop(): Unit = {
     broadcaster ! Broadcaster.Unregister
+    trace.foreach(_.close())
+  }
 
   private val compilerDiagnostics: ListBuffer[Note] = ListBuffer.empty
 
@@ -34,6 +39,11 @@ class EnsimeProjectServer(langServer: EnsimeLanguageServer,
       compilerDiagnostics ++= notes
       publishDiagnostics()
 
+    case req: RpcRequest =>
+      log.debug(s"Forwarding $req")
+      trace.foreach(_.arrived("lsp", req))
+      project forward req
+
     case message =>
       log.debug(s"Forwarding $message")
       project forward message
@@ -46,17 +46,17 @@ public abstract class AbstractFileName implements FileName
     public AbstractFileName(final String scheme, final String absPath, final FileType type)
     {
         this.rootUri = null;
-        this.scheme = scheme.intern();
+        this.scheme = NameInterner.of(scheme);
         this.type = type;
         if (absPath != null && absPath.length() > 0)
         {
             if (absPath.length() > 1 && absPath.endsWith("/"))
             {
-                this.absPath = absPath.substring(0, absPath.length() - 1).intern();
+                this.absPath = NameInterner.of(absPath.substring(0, absPath.length() - 1));
             }
             else
             {
-                this.absPath = absPath.intern();
+                this.absPath = NameInterner.of(absPath);
             }
         }
         else
@@ -139,11 +139,11 @@ public abstract class AbstractFileName implements FileName
             final int idx = getPath().lastIndexOf(SEPARATOR_CHAR);
             if (idx == -1)
             {
-                baseName = getPath().intern();
+                baseName = NameInterner.of(getPath());
             }
             else
             {
-                baseName = getPath().substring(idx + 1).intern();
+                baseName = NameInterner.of(getPath().substring(idx + 1));
             }
         }
 
@@ -180,7 +180,7 @@ public abstract class AbstractFileName implements FileName
     {
         if (decodedAbsPath == null)
         {
-            decodedAbsPath = UriParser.decode(getPath()).intern();
+            decodedAbsPath = NameInterner.of(UriParser.decode(getPath()));
         }
 
         return decodedAbsPath;
@@ -247,7 +247,7 @@ public abstract class AbstractFileName implements FileName
     {
         if (uri == null)
         {
-            uri = createURI().intern();
+            uri = NameInterner.of(createURI());
         }
         return uri;
     }
@@ -366,7 +366,7 @@ public abstract class AbstractFileName implements FileName
             final StringBuilder buffer = new StringBuilder();
             appendRootUri(buffer, true);
             buffer.append(SEPARATOR_CHAR);
-            rootUri = buffer.toString().intern();
+            rootUri = NameInterner.of(buffer.toString());
         }
         return rootUri;
     }
@@ -410,11 +410,11 @@ public abstract class AbstractFileName implements FileName
             if (pos < 1 || pos == baseName.length() - 1)
             {
                 // No extension
-                extension = "".intern();
+                extension = "";
             }
             else
             {
-                extension = baseName.substring(pos + 1).intern();
+                extension = NameInterner.of(baseName.substring(pos + 1));
             }
         }
         return extension;
@@ -0,0 +1,134 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.apache.commons.vfs2.provider;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Deduplicates the strings that make up file names.
+ * <p>
+ * Upstream VFS calls {@link String#intern()} on every path component,
+ * which fills the JVM string table with millions of classfile and jar
+ * entry names that are never released. The default implementation is
+ * a bounded, lossy, direct-mapped table of weak references: a slot
+ * holds the most recent string that hashed to it, so memory is capped
+ * at {@code capacity} references and unreachable names can be
+ * collected. Collisions simply overwrite, which costs a duplicate
+ * string but never correctness, since callers compare with
+ * {@code equals}.
+ * <p>
+ * The interner in use is global and may be replaced with
+ * {@link #setInstance(NameInterner)}, e.g. with {@link #IDENTITY} to
+ * disable deduplication entirely.
+ */
+public abstract class NameInterner
+{
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Performs no deduplication.
+     */
+    public static final NameInterner IDENTITY = new NameInterner()
+    {
+        @Override
+        public String intern(final String s)
+        {
+            return s;
+        }
+    };
+
+    private static volatile NameInterner instance =
+        new Weak(Integer.getInteger("ensime.vfs.internerCapacity", DEFAULT_CAPACITY));
+
+    /**
+     * @return the interner used by all file names.
+     */
+    public static NameInterner getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * @param interner replaces the global interner, affecting only names
+     *                 created afterwards.
+     */
+    public static void setInstance(final NameInterner interner)
+    {
+        if (interner == null)
+        {
+            throw new IllegalArgumentException("interner");
+        }
+        instance = interner;
+    }
+
+    /**
+     * Convenience for {@code getInstance().intern(s)}, tolerating {@code null}.
+     * @param s the string to deduplicate.
+     * @return a string equal to {@code s}.
+     */
+    public static String of(final String s)
+    {
+        if (s == null)
+        {
+            return null;
+        }
+        return instance.intern(s);
+    }
+
+    /**
+     * @param s a non-null string.
+     * @return a string equal to {@code s}, shared if possible.
+     */
+    public abstract String intern(String s);
+
+    /**
+     * Bounded table of weakly referenced strings.
+     */
+    public static final class Weak extends NameInterner
+    {
+        private final AtomicReferenceArray<WeakReference<String>> table;
+        private final int mask;
+
+        /**
+         * @param capacity the number of slots, rounded up to a power of two.
+         */
+        public Weak(final int capacity)
+        {
+            if (capacity < 1)
+            {
+                throw new IllegalArgumentException("capacity " + capacity);
+            }
+            final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+            this.table = new AtomicReferenceArray<WeakReference<String>>(size);
+            this.mask = size - 1;
+        }
+
+        /**
+         * @return the number of slots in the table.
+         */
+        public int capacity()
+        {
+            return table.length();
+        }
+
+        @Override
+        public String intern(final String s)
+        {
+            final int h = s.hashCode();
+            // spread the high bits, paths share long prefixes
+            final int slot = (h ^ (h >>> 16)) & mask;
+            final WeakReference<String> ref = table.get(slot);
+            if (ref != null)
+            {
+                final String existing = ref.get();
+                if (existing != null && existing.equals(s))
+                {
+                    return existing;
+                }
+            }
+            table.lazySet(slot, new WeakReference<String>(s));
+            return s;
+        }
+    }
+}
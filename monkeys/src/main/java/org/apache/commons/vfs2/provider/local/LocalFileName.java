@@ -22,6 +22,7 @@ import org.apache.commons.vfs2.FileName;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileType;
 import org.apache.commons.vfs2.provider.AbstractFileName;
+import org.apache.commons.vfs2.provider.NameInterner;
 import org.apache.commons.vfs2.provider.UriParser;
 
 /**
@@ -52,7 +53,7 @@ public class LocalFileName extends AbstractFileName
                             final FileType type)
     {
         super(scheme, path, type);
-        this.rootFile = rootFile.intern();
+        this.rootFile = NameInterner.of(rootFile);
     }
 
     /**
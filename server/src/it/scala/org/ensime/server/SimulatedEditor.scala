@@ -0,0 +1,104 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import java.io.File
+
+import scala.collection.mutable.ListBuffer
+
+import org.ensime.api._
+import org.ensime.core.RpcTrace.Entry
+
+/**
+ * The requests that an editor sends while somebody works on a file,
+ * as a trace that can be replayed. Nothing is written to disk: the
+ * unsaved contents are sent with every request, as editors do.
+ *
+ * @param keystroke millis between keystrokes.
+ * @param idle millis of inactivity before the editor catches up.
+ */
+final class SimulatedEditor(
+  session: String,
+  file: File,
+  original: String,
+  keystroke: Long = 120,
+  idle: Long = 500
+) {
+  private[this] val entries = ListBuffer.empty[Entry]
+  private[this] var clock   = 0L
+  private[this] var text    = original
+
+  private def info = SourceFileInfo(EnsimeFile(file), Some(text))
+
+  private def send(req: RpcRequest): Unit =
+    entries += Entry(clock, session, req, None, None)
+
+  private def highlight(): Unit =
+    send(
+      SymbolDesignationsReq(Right(info),
+                            0,
+                            text.length,
+                            SourceSymbol.allSymbols)
+    )
+
+  def open(): this.type = {
+    send(TypecheckFileReq(info))
+    highlight()
+    this
+  }
+
+  /**
+   * Types `typed` at `point`, asking for completions after every `.`
+   * and typechecking at the end of every word.
+   */
+  def typeAt(point: Int, typed: String): this.type = {
+    typed.zipWithIndex.foreach {
+      case (c, i) =>
+        clock += keystroke
+        text = text.patch(point + i, c.toString, 0)
+        val caret = point + i + 1
+        if (c == '.')
+          send(
+            CompletionsReq(info, caret, 30, caseSens = false, reload = false)
+          )
+        else if (c.isWhitespace)
+          send(TypecheckFileReq(info))
+    }
+    clock += idle
+    val caret = point + typed.length
+    send(TypecheckFileReq(info))
+    highlight()
+    send(TypeAtPointReq(Right(info), OffsetRange(caret - 1)))
+    this
+  }
+
+  /** Saving triggers a recompile of the file. */
+  def save(): this.type = {
+    clock += idle
+    send(TypecheckFilesReq(List(Right(info))))
+    highlight()
+    this
+  }
+
+  def trace: List[Entry] = entries.toList
+}
+
+object SimulatedEditor {
+
+  /**
+   * A short session in `Foo.scala` of the simple test project: two
+   * members are typed and the file is saved after each of them.
+   */
+  def session(name: String, foo: File, contents: String): List[Entry] = {
+    val members = List(
+      "\n  val typed = foo.testMethod(1, \"one\")",
+      "\n  def twice(s: String) = s.length * 2"
+    )
+    val editor = new SimulatedEditor(name, foo, contents).open()
+    members.foldLeft(contents.indexOf("\n  class Buz")) { (point, typed) =>
+      editor.typeAt(point, typed).save()
+      point + typed.length
+    }
+    editor.trace
+  }
+}
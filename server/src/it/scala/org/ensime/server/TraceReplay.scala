@@ -0,0 +1,156 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import scala.collection.mutable
+import scala.concurrent.{ Await, Future, Promise }
+import scala.concurrent.duration._
+
+import akka.actor._
+import org.ensime.api._
+import org.ensime.core.RpcTrace
+
+/**
+ * Replays a trace against a project, `concurrency` times over. Every
+ * recorded session (client) is replayed by a client of its own, that
+ * sends the session's requests at the time they were recorded (divided
+ * by `speedUp`), whether or not earlier requests were answered.
+ *
+ * Only the server is measured, not the wire: requests go through a
+ * `RequestHandler`, like those of a connected client, but bypass the
+ * TCP, WebSocket and stdio transports and are never encoded or
+ * decoded. LSP sessions are recorded as the `RpcRequest`s that they
+ * are translated into, so the cost of the translation is not measured
+ * either.
+ */
+object TraceReplay {
+
+  /** The latency of every request that was answered, by request type. */
+  final case class Report(
+    latencies: Map[String, Vector[Long]],
+    errors: Map[String, Int],
+    unanswered: Int,
+    wallMillis: Long
+  ) {
+    def answered: Int = latencies.values.map(_.size).sum
+    def requests: Int = answered + unanswered
+
+    /** Answers per second. */
+    def throughput: Double = answered * 1000.0 / math.max(wallMillis, 1L)
+
+    /** Nearest rank, in millis. */
+    def percentile(requestType: String, p: Double): Long = {
+      val sorted = latencies.getOrElse(requestType, Vector.empty).sorted
+      if (sorted.isEmpty) 0L
+      else sorted(math.max(0, math.ceil(p * sorted.size).toInt - 1))
+    }
+
+    override def toString: String = {
+      val columns = "%-28s %6s %7s %7s %7s %6s"
+      val header  = columns.format("request", "n", "p50", "p95", "p99", "errors")
+      val rows = latencies.keys.toList.sorted.map { t =>
+        val ps = List(0.50, 0.95, 0.99).map(p => s"${percentile(t, p)}ms")
+        val cells = t :: latencies(t).size :: ps ::: List(errors.getOrElse(t, 0))
+        columns.format(cells: _*)
+      }
+      val summary = f"$answered answered in ${wallMillis}ms " +
+        f"($throughput%.1f/s), $unanswered unanswered"
+      (header :: rows ::: List(summary)).mkString("\n")
+    }
+  }
+
+  def apply(
+    project: ActorRef,
+    trace: List[RpcTrace.Entry],
+    concurrency: Int,
+    speedUp: Double,
+    timeout: FiniteDuration
+  )(implicit system: ActorSystem): Report = {
+    import system.dispatcher
+
+    val started = System.nanoTime()
+    val sessions = trace.groupBy(_.session).values.toList
+    val clients = for {
+      _       <- (1 to concurrency).toList
+      session <- sessions
+    } yield {
+      val done = Promise[Results]()
+      system.actorOf(
+        Props(new Client(project, session, speedUp, timeout, done))
+      )
+      done.future
+    }
+    val results = Await.result(Future.sequence(clients), timeout + 10.seconds)
+    val wall    = (System.nanoTime() - started) / 1000000
+
+    val answered = results.flatMap(_.answered)
+    Report(
+      answered.groupBy(_._1).map { case (t, ls) => t -> ls.map(_._2).toVector },
+      answered.filter(_._3).groupBy(_._1).map { case (t, es) => t -> es.size },
+      results.map(_.unanswered).sum,
+      wall
+    )
+  }
+
+  /** (request type, latency, error) */
+  private final case class Results(
+    answered: List[(String, Long, Boolean)],
+    unanswered: Int
+  )
+
+  private final case class Send(index: Int)
+  private case object Timeout
+
+  private final class Client(
+    project: ActorRef,
+    trace: List[RpcTrace.Entry],
+    speedUp: Double,
+    timeout: FiniteDuration,
+    done: Promise[Results]
+  ) extends Actor {
+    import context.dispatcher
+
+    private val entries  = trace.toVector
+    private val sent     = mutable.Map.empty[Int, Long]
+    private val answered = mutable.ListBuffer.empty[(String, Long, Boolean)]
+
+    override def preStart(): Unit = {
+      entries.zipWithIndex.foreach {
+        case (entry, i) =>
+          val at = (entry.at / speedUp).toLong.millis
+          context.system.scheduler.scheduleOnce(at, self, Send(i))
+      }
+      context.system.scheduler.scheduleOnce(timeout, self, Timeout)
+      if (entries.isEmpty) finish()
+    }
+
+    def receive: Receive = {
+      case Send(i) =>
+        sent(i) = System.nanoTime()
+        context.actorOf(
+          RequestHandler(RpcRequestEnvelope(entries(i).req, i),
+                         project,
+                         self,
+                         None)
+        )
+
+      case RpcResponseEnvelope(Some(i), response) =>
+        sent.remove(i).foreach { at =>
+          val latency = (System.nanoTime() - at) / 1000000
+          val error = response match {
+            case _: EnsimeServerError => true
+            case _                    => false
+          }
+          answered += ((entries(i).requestType, latency, error))
+        }
+        if (answered.size == entries.size) finish()
+
+      case Timeout => finish()
+    }
+
+    private def finish(): Unit = {
+      done.trySuccess(Results(answered.toList, entries.size - answered.size))
+      context stop self
+    }
+  }
+}
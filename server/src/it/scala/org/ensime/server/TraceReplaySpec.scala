@@ -0,0 +1,62 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import java.nio.file.Paths
+
+import scala.concurrent.duration._
+
+import org.ensime.core.RpcTrace
+import org.ensime.fixture._
+import org.ensime.util.EnsimeSpec
+import org.ensime.api.EnsimeFile.Implicits.DefaultCharset
+import org.ensime.util.file._
+
+/**
+ * A load test: replays a trace (a simulated editing session, unless
+ * `-Densime.replay.trace` names a recorded one) and reports the
+ * latencies. `-Densime.replay.concurrency` and `-Densime.replay.speedUp`
+ * make it harder.
+ *
+ * The latencies are those of the server alone: the transports and the
+ * wire protocols (including the LSP translation) are not measured, see
+ * `TraceReplay`.
+ */
+class TraceReplaySpec
+    extends EnsimeSpec
+    with IsolatedEnsimeConfigFixture
+    with IsolatedTestKitFixture
+    with IsolatedProjectFixture {
+
+  val original = EnsimeConfigFixture.SimpleTestProject
+
+  private def setting(key: String, default: String): String =
+    sys.props.getOrElse(s"ensime.replay.$key", default)
+
+  "TraceReplay" should "replay an editing session against the simple project" in {
+    withEnsimeConfig { implicit config =>
+      withTestKit { implicit testkit =>
+        withProject { (project, asyncHelper) =>
+          import testkit._
+
+          val trace = sys.props.get("ensime.replay.trace") match {
+            case Some(recorded) =>
+              RpcTrace.read(Paths.get(recorded), config.rootDir.file)
+            case None =>
+              val foo = scalaMain / "org/example/Foo.scala"
+              SimulatedEditor.session("editor", foo, foo.readString())
+          }
+          val concurrency = setting("concurrency", "1").toInt
+          val speedUp     = setting("speedUp", "1").toDouble
+
+          val report =
+            TraceReplay(project, trace, concurrency, speedUp, 5.minutes)
+          info(report.toString)
+
+          report.requests shouldBe trace.size * concurrency
+          report.unanswered shouldBe 0
+        }
+      }
+    }
+  }
+}
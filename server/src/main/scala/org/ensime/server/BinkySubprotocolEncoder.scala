@@ -0,0 +1,232 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import java.io.{ ByteArrayOutputStream, EOFException, IOException }
+import java.nio.charset.StandardCharsets.UTF_8
+
+import scala.collection.mutable
+import scala.util.{ Failure, Success, Try }
+
+import spray.json._
+import org.ensime.api._
+
+/**
+ * The "binky" subprotocol: the same messages as jerky, in a compact
+ * binary form that is sent as binary frames.
+ *
+ * Every frame is a version byte followed by a value. A value is a tag
+ * byte and its content:
+ *
+ *  - 0 null, 1 false, 2 true
+ *  - 3 an integer, as a zigzag varint
+ *  - 4 a decimal, as a string
+ *  - 5 a string
+ *  - 6 an array: a varint count, then the values
+ *  - 7 an object: a varint count, then string keys and values
+ *
+ * A string is a varint reference into a string table that belongs to
+ * the connection, one for each direction: 0 is followed by a new
+ * entry (a varint byte length and UTF-8), 1 by a string that is not
+ * worth remembering (in the same form) and `n` refers to entry `n - 2`.
+ * Field names, symbol kinds and type names are therefore only sent
+ * once per connection.
+ *
+ * Responses are still rendered to spray's JsValue first, so this
+ * makes frames smaller but is no cheaper to encode than jerky.
+ *
+ * Stateful: one instance per connection, and frames must be sent in
+ * the order that they were written.
+ */
+final class BinkySubprotocolEncoder {
+  import BinkySubprotocolEncoder._
+  import JsReader.ops._
+  import JsWriter.ops._
+
+  private[this] val written = mutable.HashMap.empty[String, Int]
+  private[this] val read    = mutable.ArrayBuffer.empty[String]
+
+  def readFrame(
+    request: Array[Byte]
+  ): Either[RpcRequestInvalid, RpcRequestEnvelope] =
+    Try(decode(request)) match {
+      case Failure(err) => Left(RpcRequestInvalid(err.toString))
+      case Success(json) =>
+        json.as[RpcRequestEnvelope] match {
+          case Right(x)  => Right(x)
+          case Left(err) => Left(RpcRequestInvalid(err.msg))
+        }
+    }
+
+  def writeFrame(response: RpcResponseEnvelope): Array[Byte] =
+    writeJson(response.toJson)
+
+  /** For json that is shared between connections. */
+  def writeJson(json: JsValue): Array[Byte] = {
+    val out = new ByteArrayOutputStream(256)
+    out.write(Version)
+    writeValue(out, json)
+    out.toByteArray
+  }
+
+  private def writeValue(out: ByteArrayOutputStream, json: JsValue): Unit =
+    json match {
+      case JsNull           => out.write(NullTag)
+      case JsBoolean(false) => out.write(FalseTag)
+      case JsBoolean(true)  => out.write(TrueTag)
+      case JsNumber(n) if n.isValidLong =>
+        out.write(IntTag)
+        writeVarint(out, zigzag(n.toLong))
+      case JsNumber(n) =>
+        out.write(DecimalTag)
+        writeString(out, n.toString)
+      case JsString(s) =>
+        out.write(StringTag)
+        writeString(out, s)
+      case JsArray(elements) =>
+        out.write(ArrayTag)
+        writeVarint(out, elements.size.toLong)
+        elements.foreach(writeValue(out, _))
+      case JsObject(fields) =>
+        out.write(ObjectTag)
+        writeVarint(out, fields.size.toLong)
+        fields.foreach {
+          case (k, v) =>
+            writeString(out, k)
+            writeValue(out, v)
+        }
+    }
+
+  private def writeString(out: ByteArrayOutputStream, s: String): Unit =
+    written.get(s) match {
+      case Some(i) => writeVarint(out, i + 2L)
+      case None =>
+        val bytes = s.getBytes(UTF_8)
+        if (bytes.length <= MaxInterned && written.size < MaxStrings) {
+          written(s) = written.size
+          out.write(0)
+        } else out.write(1)
+        writeVarint(out, bytes.length.toLong)
+        out.write(bytes)
+    }
+
+  /** The other side of `writeJson`, e.g. for a client. */
+  private[server] def readJson(bytes: Array[Byte]): JsValue = decode(bytes)
+
+  private def decode(bytes: Array[Byte]): JsValue = {
+    val in = new Input(bytes)
+    if (in.byte() != Version)
+      throw new IOException("unsupported binky version")
+    val json = readValue(in, 0)
+    if (in.pos != bytes.length) throw new IOException("trailing bytes")
+    json
+  }
+
+  // a StackOverflowError is fatal, it would not become RpcRequestInvalid
+  private def readValue(in: Input, depth: Int): JsValue = in.byte() match {
+    case _ if depth > MaxDepth =>
+      throw new IOException(s"nested deeper than $MaxDepth")
+    case NullTag    => JsNull
+    case FalseTag   => JsBoolean.False
+    case TrueTag    => JsBoolean.True
+    case IntTag     => JsNumber(unzigzag(in.varint()))
+    case DecimalTag => JsNumber(readString(in))
+    case StringTag  => JsString(readString(in))
+    case ArrayTag =>
+      val n = in.count()
+      JsArray(List.fill(n)(readValue(in, depth + 1)))
+    case ObjectTag =>
+      val n = in.count()
+      JsObject((0 until n).map { _ =>
+        val k = readString(in)
+        k -> readValue(in, depth + 1)
+      }.toMap)
+    case other => throw new IOException(s"unknown binky tag $other")
+  }
+
+  private def readString(in: Input): String = in.varint() match {
+    case 0L =>
+      if (read.size >= MaxStrings) throw new IOException("too many strings")
+      val s = in.utf8()
+      read += s
+      s
+    case 1L => in.utf8()
+    case n =>
+      val i = n - 2
+      if (i < 0 || i >= read.size)
+        throw new IOException(s"unknown string $i")
+      read(i.toInt)
+  }
+}
+
+object BinkySubprotocolEncoder {
+  val Subprotocol = "binky"
+
+  private val Version: Byte = 1
+
+  private final val NullTag    = 0
+  private final val FalseTag   = 1
+  private final val TrueTag    = 2
+  private final val IntTag     = 3
+  private final val DecimalTag = 4
+  private final val StringTag  = 5
+  private final val ArrayTag   = 6
+  private final val ObjectTag  = 7
+
+  // bounds the memory of the string tables
+  private val MaxStrings  = 1 << 16
+  private val MaxInterned = 256
+  // far deeper than any request
+  private val MaxDepth = 64
+
+  private def zigzag(n: Long): Long   = (n << 1) ^ (n >> 63)
+  private def unzigzag(n: Long): Long = (n >>> 1) ^ -(n & 1)
+
+  private def writeVarint(out: ByteArrayOutputStream, value: Long): Unit = {
+    var v = value
+    while ((v & ~0x7FL) != 0L) {
+      out.write(((v & 0x7F) | 0x80).toInt)
+      v >>>= 7
+    }
+    out.write(v.toInt)
+  }
+
+  private final class Input(bytes: Array[Byte]) {
+    var pos = 0
+
+    def byte(): Int = {
+      if (pos >= bytes.length) throw new EOFException
+      val b = bytes(pos) & 0xFF
+      pos += 1
+      b
+    }
+
+    def varint(): Long = {
+      var result = 0L
+      var shift  = 0
+      var b      = byte()
+      while ((b & 0x80) != 0) {
+        result |= (b & 0x7F).toLong << shift
+        shift += 7
+        if (shift > 63) throw new IOException("malformed varint")
+        b = byte()
+      }
+      result | (b.toLong << shift)
+    }
+
+    // a length or a count, which can't exceed what is left
+    def count(): Int = {
+      val n = varint()
+      if (n < 0 || n > bytes.length - pos)
+        throw new IOException(s"bad length $n")
+      n.toInt
+    }
+
+    def utf8(): String = {
+      val n = count()
+      val s = new String(bytes, pos, n, UTF_8)
+      pos += n
+      s
+    }
+  }
+}
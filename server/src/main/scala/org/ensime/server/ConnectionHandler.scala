@@ -2,6 +2,9 @@
 // License: http://www.gnu.org/licenses/gpl-3.0.en.html
 package org.ensime.server
 
+import scala.concurrent.{ blocking, Future }
+import scala.util.control.NonFatal
+
 import akka.actor._
 import akka.event.LoggingReceive
 import org.ensime.api._
@@ -11,19 +14,28 @@ import scalaz.ioeffect.RTS
 
 /**
  * Accepts RpcRequestEnvelope and responds with an RpcResponseEnvelope to target.
- * Also sends asynchronous RpcResponseEnvelopes to target.
+ * Also sends asynchronous events to target, as a SharedResponse.
  * Ensures that everything in and out is canonised.
  */
 class ConnectionHandler(
   project: ActorRef,
   broadcaster: ActorRef,
-  target: ActorRef
+  target: ActorRef,
+  trace: Option[RpcTrace]
 ) extends Actor
     with ActorLogging
     with RTS {
 
+  // canonicalisation performs IO so it is chained off this actor's
+  // thread, which preserves request order. The outcome is reported back
+  // to the actor, which is not thread safe (nor is its log).
+  private var canonicalising: Future[Unit] = Future.successful(())
+  private final case class Canonicalised(envelope: RpcRequestEnvelope)
+  private final case class NotCanonicalised(envelope: RpcRequestEnvelope,
+                                            error: Throwable)
+
   override def preStart(): Unit =
-    broadcaster ! Broadcaster.Register
+    broadcaster ! Broadcaster.RegisterShared
 
   override def postStop(): Unit =
     broadcaster ! Broadcaster.Unregister
@@ -35,23 +47,65 @@ class ConnectionHandler(
 
   def receiveRpc: Receive = {
     case req: RpcRequestEnvelope =>
-      val handler = RequestHandler(unsafePerformIO(req.canon), project, self)
-      context.actorOf(handler, s"${req.callId}")
+      canonicalising = canonicalising.map { _ =>
+        val msg =
+          try Canonicalised(blocking(unsafePerformIO(req.canon)))
+          catch { case NonFatal(e) => NotCanonicalised(req, e) }
+        self ! msg
+      }(context.dispatcher)
+
+    case Canonicalised(envelope) =>
+      val handler = RequestHandler(envelope, project, self, trace)
+      context.actorOf(handler, s"${envelope.callId}")
+
+    case NotCanonicalised(req, e) =>
+      log.error(e, s"Problem canonicalising $req")
+      self ! RpcResponseEnvelope(
+        Some(req.callId),
+        EnsimeServerError(s"Server error: ${e.getMessage}")
+      )
 
     case outgoing: RpcResponseEnvelope =>
       target forward unsafePerformIO(outgoing.canon)
   }
 
   def receiveEvents: Receive = {
-    case outgoing: EnsimeEvent =>
-      target forward RpcResponseEnvelope(None, unsafePerformIO(outgoing.canon))
+    case shared: Broadcaster.Shared =>
+      shared.message match {
+        case outgoing: EnsimeEvent =>
+          val envelope = ConnectionHandler.envelope(this, shared, outgoing)
+          target forward ConnectionHandler.SharedResponse(envelope, shared)
+        case _ =>
+      }
   }
 
 }
 object ConnectionHandler {
+
+  /** A broadcast event, for the target to encode via `shared`. */
+  final case class SharedResponse(
+    envelope: RpcResponseEnvelope,
+    shared: Broadcaster.Shared
+  )
+
+  private object Canonical
+
+  /**
+   * The canonised envelope of a broadcast event, which is computed
+   * only once no matter how many clients are connected.
+   */
+  private[server] def envelope(rts: RTS,
+                               shared: Broadcaster.Shared,
+                               outgoing: EnsimeEvent): RpcResponseEnvelope =
+    shared.encoded(Canonical) {
+      RpcResponseEnvelope(None, rts.unsafePerformIO(outgoing.canon))
+    }
+
   def apply(
     project: ActorRef,
     broadcaster: ActorRef,
-    target: ActorRef
-  ): Props = Props(classOf[ConnectionHandler], project, broadcaster, target)
+    target: ActorRef,
+    trace: Option[RpcTrace]
+  ): Props =
+    Props(classOf[ConnectionHandler], project, broadcaster, target, trace)
 }
@@ -14,10 +14,13 @@ import org.ensime.indexer.FullyQualifiedName
 class RequestHandler(
   envelope: RpcRequestEnvelope,
   project: ActorRef,
-  server: ActorRef
+  server: ActorRef,
+  trace: Option[RpcTrace]
 ) extends Actor
     with ActorLogging {
 
+  private val call = trace.map(_.arrived(server.path.name, envelope.req))
+
   override def preStart(): Unit = {
     if (log.isDebugEnabled)
       log.debug(envelope.req.toString)
@@ -53,18 +56,28 @@ class RequestHandler(
     case Some(sig: DocSigPair) =>
       project ! sig
       context.unbecome()
+    case err: EnsimeServerError => // e.g. superseded or cancelled
+      self ! err
+      context.unbecome()
   }
 
   // we can put all manner of timeout / monitoring logic in here
 
   def receive = LoggingReceive.withLabel("receive") {
     case err: EnsimeServerError =>
-      server forward RpcResponseEnvelope(Some(envelope.callId), err)
-      context stop self
+      respond(err)
 
     case response: RpcResponse =>
-      server forward RpcResponseEnvelope(Some(envelope.callId), response)
-      context stop self
+      respond(response)
+  }
+
+  private def respond(response: RpcResponse): Unit = {
+    for {
+      t <- trace
+      c <- call
+    } t.answered(c, response)
+    server forward RpcResponseEnvelope(Some(envelope.callId), response)
+    context stop self
   }
 
 }
@@ -72,6 +85,7 @@ object RequestHandler {
   def apply(
     env: RpcRequestEnvelope,
     project: ActorRef,
-    server: ActorRef
-  ): Props = Props(classOf[RequestHandler], env, project, server)
+    server: ActorRef,
+    trace: Option[RpcTrace]
+  ): Props = Props(classOf[RequestHandler], env, project, server, trace)
 }
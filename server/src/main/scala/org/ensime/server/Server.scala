@@ -31,6 +31,8 @@ class ServerActor(
 
   var channel: Channel = _
 
+  private var trace: Option[RpcTrace] = None
+
   override val supervisorStrategy = OneForOneStrategy() {
     case ex: Exception =>
       log.error(ex, s"Error with monitor actor ${ex.getMessage}")
@@ -48,19 +50,24 @@ class ServerActor(
 
     val broadcaster = context.actorOf(Broadcaster(), "broadcaster")
     val project     = context.actorOf(Project(broadcaster), "project")
+    trace = RpcTrace.forConfig
 
     // async start the HTTP Server
     val selfRef           = self
     val preferredHttpPort = PortUtil.port(config.cacheDir.file, "http")
 
-    val hookHandlers: WebServer.HookHandlers = { outHandler =>
+    val hookHandlers: WebServer.HookHandlers = { (outHandler, sharedHandler) =>
       val delegate = context.actorOf(Props(new Actor {
         def receive: Receive = {
           case res: RpcResponseEnvelope => outHandler(res)
+          case ConnectionHandler.SharedResponse(res, shared) =>
+            sharedHandler(res, shared)
         }
       }))
       val inHandler =
-        context.actorOf(ConnectionHandler(project, broadcaster, delegate))
+        context.actorOf(
+          ConnectionHandler(project, broadcaster, delegate, trace)
+        )
 
       { req =>
         req.fold(err => inHandler ! err, msg => inHandler ! msg)
@@ -107,6 +114,9 @@ class ServerActor(
         log.error(t, s"Error during startup - ${t.getMessage}")
         self ! ShutdownRequest(t.toString, isError = true)
     }
+
+  override def postStop(): Unit =
+    trace.foreach(_.close())
   override def receive: Receive = {
     case req: ShutdownRequest =>
       triggerShutdown(req)
@@ -25,13 +25,15 @@ import org.ensime.api.{
   RpcRequestInvalid,
   RpcResponseEnvelope
 }
-import org.ensime.core.DocJarReading
+import org.ensime.core.{ Broadcaster, DocJarReading }
 
 object WebServer {
 
   type IncomingHandler = Either[RpcRequestInvalid, RpcRequestEnvelope] => Unit
   type OutgoingHandler = RpcResponseEnvelope => Unit
-  type HookHandlers    = OutgoingHandler => IncomingHandler
+  // a response that is broadcast to all clients, encoded once per subprotocol
+  type SharedHandler = (RpcResponseEnvelope, Broadcaster.Shared) => Unit
+  type HookHandlers  = (OutgoingHandler, SharedHandler) => IncomingHandler
 
   private[server] def initPipeline(
     pipeline: ChannelPipeline,
@@ -41,7 +43,7 @@ object WebServer {
     pipeline.addLast(new HttpServerCodec())
     pipeline.addLast(new HttpObjectAggregator(65536))
     pipeline.addLast(
-      new WebSocketServerProtocolHandler("/websocket", "jerky, swanky")
+      new WebSocketServerProtocolHandler("/websocket", "jerky, swanky, binky")
     )
     pipeline.addLast(new WebSocketFrameHandler(hookHandlers))
     pipeline.addLast(new DocsHandler(docs))
@@ -2,6 +2,7 @@
 // License: http://www.gnu.org/licenses/gpl-3.0.en.html
 package org.ensime.server
 
+import io.netty.buffer.{ ByteBufUtil, Unpooled }
 import io.netty.channel.{
   Channel,
   ChannelHandlerContext,
@@ -9,6 +10,7 @@ import io.netty.channel.{
 }
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler.HandshakeComplete
 import io.netty.handler.codec.http.websocketx.{
+  BinaryWebSocketFrame,
   TextWebSocketFrame,
   WebSocketFrame
 }
@@ -24,17 +26,17 @@ class WebSocketFrameHandler(
 
   val log = LoggerFactory.getLogger(this.getClass)
 
-  val inHandlerKey: AttributeKey[String => Unit] =
-    AttributeKey.valueOf(classOf[String => Unit], "INHANDLER");
+  val inHandlerKey: AttributeKey[WebSocketFrame => Unit] =
+    AttributeKey.valueOf(classOf[WebSocketFrame => Unit], "INHANDLER");
 
   val outHandlerKey: AttributeKey[OutgoingHandler] =
     AttributeKey.valueOf(classOf[OutgoingHandler], "OUTHANDLER");
 
   private def setInHandler(ctx: ChannelHandlerContext,
-                           inHandler: String => Unit): Unit =
+                           inHandler: WebSocketFrame => Unit): Unit =
     ctx.channel().attr(inHandlerKey).set(inHandler)
 
-  private def getInHandler(ctx: ChannelHandlerContext): String => Unit =
+  private def getInHandler(ctx: ChannelHandlerContext): WebSocketFrame => Unit =
     ctx.channel().attr(inHandlerKey).get()
 
   private def setOutHandler(ctx: ChannelHandlerContext,
@@ -50,6 +52,11 @@ class WebSocketFrameHandler(
       case "swanky" => SwankySubprotocolEncoder
     }
 
+  private def unsupported(frame: WebSocketFrame): Nothing = {
+    val message = "Unsupported frame type: " + frame.getClass().getName()
+    throw new UnsupportedOperationException(message)
+  }
+
   private def encodedOutHandler(
     ch: Channel,
     encoder: SubprotocolEncoder
@@ -58,11 +65,61 @@ class WebSocketFrameHandler(
     ch.writeAndFlush(new TextWebSocketFrame(response))
   }
 
-  private def encodedInHandler(inHandler: IncomingHandler,
-                               encoder: SubprotocolEncoder): String => Unit = {
-    frameText =>
-      val rpcReq = encoder.readFrame(frameText)
-      inHandler(rpcReq)
+  private def encodedSharedHandler(
+    ch: Channel,
+    encoder: SubprotocolEncoder
+  ): SharedHandler = { (rpcResp, shared) =>
+    val response = shared.encoded(encoder)(encoder.writeFrame(rpcResp))
+    ch.writeAndFlush(new TextWebSocketFrame(response))
+  }
+
+  private def encodedInHandler(
+    inHandler: IncomingHandler,
+    encoder: SubprotocolEncoder
+  ): WebSocketFrame => Unit = {
+    case txtFrame: TextWebSocketFrame =>
+      inHandler(encoder.readFrame(txtFrame.text))
+    case frame => unsupported(frame)
+  }
+
+  // the string tables require that frames are sent in the order that
+  // they are encoded, and writes from other threads are queued in order
+  private def binkyOutHandler(
+    ch: Channel,
+    encoder: BinkySubprotocolEncoder
+  ): OutgoingHandler = { rpcResp =>
+    encoder.synchronized {
+      val response = encoder.writeFrame(rpcResp)
+      ch.writeAndFlush(binaryFrame(response))
+    }
+  }
+
+  private def binaryFrame(bytes: Array[Byte]): WebSocketFrame =
+    new BinaryWebSocketFrame(Unpooled.wrappedBuffer(bytes))
+
+  // the json is shared, but not the string tables
+  private def binkySharedHandler(
+    ch: Channel,
+    encoder: BinkySubprotocolEncoder
+  ): SharedHandler = { (rpcResp, shared) =>
+    import spray.json.JsWriter.ops._
+    val json = shared.encoded(BinkySubprotocolEncoder)(rpcResp.toJson)
+    encoder.synchronized {
+      val response = encoder.writeJson(json)
+      ch.writeAndFlush(binaryFrame(response))
+    }
+  }
+
+  // clients may also send their (small) requests as jerky text
+  private def binkyInHandler(
+    inHandler: IncomingHandler,
+    encoder: BinkySubprotocolEncoder
+  ): WebSocketFrame => Unit = {
+    case binFrame: BinaryWebSocketFrame =>
+      inHandler(encoder.readFrame(ByteBufUtil.getBytes(binFrame.content)))
+    case txtFrame: TextWebSocketFrame =>
+      inHandler(JerkySubprotocolEncoder.readFrame(txtFrame.text))
+    case frame => unsupported(frame)
   }
 
   override protected def userEventTriggered(ctx: ChannelHandlerContext,
@@ -70,9 +127,26 @@ class WebSocketFrameHandler(
     if (evt.isInstanceOf[HandshakeComplete]) {
       val serverHandshakeComplete = evt.asInstanceOf[HandshakeComplete];
       val subprotocol             = serverHandshakeComplete.selectedSubprotocol
-      val encoder                 = encoderFor(subprotocol)
-      val outHandler              = encodedOutHandler(ctx.channel(), encoder)
-      val inHandler               = encodedInHandler(hookHandlers(outHandler), encoder)
+      val (outHandler, inHandler) = subprotocol match {
+        case BinkySubprotocolEncoder.Subprotocol =>
+          val encoder       = new BinkySubprotocolEncoder
+          val outHandler    = binkyOutHandler(ctx.channel(), encoder)
+          val sharedHandler = binkySharedHandler(ctx.channel(), encoder)
+          val inHandler = binkyInHandler(
+            hookHandlers(outHandler, sharedHandler),
+            encoder
+          )
+          (outHandler, inHandler)
+        case _ =>
+          val encoder       = encoderFor(subprotocol)
+          val outHandler    = encodedOutHandler(ctx.channel(), encoder)
+          val sharedHandler = encodedSharedHandler(ctx.channel(), encoder)
+          val inHandler = encodedInHandler(
+            hookHandlers(outHandler, sharedHandler),
+            encoder
+          )
+          (outHandler, inHandler)
+      }
       setInHandler(ctx, inHandler)
       setOutHandler(ctx, outHandler)
       log.info("Handlers ready")
@@ -80,13 +154,7 @@ class WebSocketFrameHandler(
 
   override protected def channelRead0(ctx: ChannelHandlerContext,
                                       frame: WebSocketFrame): Unit =
-    frame match {
-      case txtFrame: TextWebSocketFrame =>
-        getInHandler(ctx)(txtFrame.text)
-      case _ =>
-        val message = "Unsupported frame type: " + frame.getClass().getName()
-        throw new UnsupportedOperationException(message)
-    }
+    getInHandler(ctx)(frame)
 
   override protected def exceptionCaught(ctx: ChannelHandlerContext,
                                          t: Throwable): Unit = {
@@ -13,13 +13,14 @@ import org.ensime.api.{
   RpcRequestEnvelope,
   RpcResponseEnvelope
 }
-import org.ensime.core.{ Broadcaster, Protocol }
+import org.ensime.core.{ Broadcaster, Protocol, RpcTrace }
 import org.ensime.io.Canon
-import org.ensime.server.RequestHandler
+import org.ensime.server.{ ConnectionHandler, RequestHandler }
 
 import scalaz.ioeffect.RTS
 
 import scala.annotation.tailrec
+import scala.concurrent.{ blocking, Future }
 import scala.util.control.NonFatal
 
 import Canon.ops._
@@ -28,7 +29,8 @@ class TCPConnectionActor(
   connection: ActorRef,
   protocol: Protocol,
   project: ActorRef,
-  broadcaster: ActorRef
+  broadcaster: ActorRef,
+  trace: Option[RpcTrace]
 ) extends Actor
     with Stash
     with ActorLogging
@@ -44,6 +46,14 @@ class TCPConnectionActor(
   // bytes we have seen but have been unable to process yet
   var seen = ByteString()
 
+  // canonicalisation performs IO so it is chained off this actor's
+  // thread, which preserves request order. The outcome is reported back
+  // to the actor, which is not thread safe (nor is its log).
+  private var canonicalising: Future[Unit] = Future.successful(())
+  private final case class Canonicalised(envelope: RpcRequestEnvelope)
+  private final case class NotCanonicalised(envelope: RpcRequestEnvelope,
+                                            error: Throwable)
+
   def handlePeerClosed(): Unit = {
     context.parent ! ClientConnectionClosed
     context stop self
@@ -62,11 +72,30 @@ class TCPConnectionActor(
       attemptProcess()
     case PeerClosed =>
       handlePeerClosed()
+    case Canonicalised(envelope) =>
+      context.actorOf(RequestHandler(envelope, project, self, trace),
+                      s"${envelope.callId}")
+    case NotCanonicalised(req, e) =>
+      // like the other transports, only this request fails
+      log.error(e, s"Problem canonicalising $req")
+      self ! RpcResponseEnvelope(
+        Some(req.callId),
+        EnsimeServerError(s"Server error: ${e.getMessage}")
+      )
   }
 
   def readyToSend: Receive = {
-    case outgoing: EnsimeEvent =>
-      sendMessage(RpcResponseEnvelope(None, outgoing))
+    case shared: Broadcaster.Shared =>
+      shared.message match {
+        case outgoing: EnsimeEvent =>
+          // encoded once per protocol, for all connected clients
+          write(shared.encoded(protocol) {
+            encode(RpcResponseEnvelope(None, outgoing)) {
+              ConnectionHandler.envelope(this, shared, outgoing)
+            }
+          })
+        case _ =>
+      }
     case outgoing: RpcResponseEnvelope =>
       sendMessage(outgoing)
   }
@@ -76,7 +105,7 @@ class TCPConnectionActor(
       // we only stash outgoing messages, so this will cause them to be queued for sending
       unstashAll()
       context.become(idle, discardOld = true)
-    case outgoing: EnsimeEvent =>
+    case shared: Broadcaster.Shared =>
       stash()
     case outgoing: RpcResponseEnvelope =>
       stash()
@@ -84,9 +113,14 @@ class TCPConnectionActor(
       connection ! ResumeWriting
   }
 
-  def sendMessage(envelope: RpcResponseEnvelope): Unit = {
-    val msg = try {
-      protocol.encode(unsafePerformIO(envelope.canon))
+  def sendMessage(envelope: RpcResponseEnvelope): Unit =
+    write(encode(envelope)(unsafePerformIO(envelope.canon)))
+
+  private def encode(
+    envelope: RpcResponseEnvelope
+  )(canonical: => RpcResponseEnvelope): ByteString =
+    try {
+      protocol.encode(canonical)
     } catch {
       case NonFatal(t) =>
         log.error(t, s"Problem serialising $envelope")
@@ -97,12 +131,14 @@ class TCPConnectionActor(
           )
         )
     }
+
+  private def write(msg: ByteString): Unit = {
     connection ! Tcp.Write(msg, Ack)
     context.become(busy, discardOld = true)
   }
 
   override def preStart(): Unit =
-    broadcaster ! Broadcaster.Register
+    broadcaster ! Broadcaster.RegisterShared
 
   final def attemptProcess(): Unit =
     try {
@@ -121,9 +157,12 @@ class TCPConnectionActor(
     seen = remainder
     envelopeOpt match {
       case Some(rawEnvelope: RpcRequestEnvelope) =>
-        val envelope = unsafePerformIO(rawEnvelope.canon)
-        context.actorOf(RequestHandler(envelope, project, self),
-                        s"${envelope.callId}")
+        canonicalising = canonicalising.map { _ =>
+          val msg =
+            try Canonicalised(blocking(unsafePerformIO(rawEnvelope.canon)))
+            catch { case NonFatal(e) => NotCanonicalised(rawEnvelope, e) }
+          self ! msg
+        }(context.dispatcher)
         repeatedDecode()
       case None =>
     }
@@ -134,6 +173,9 @@ object TCPConnectionActor {
   def apply(connection: ActorRef,
             protocol: Protocol,
             project: ActorRef,
-            broadcaster: ActorRef): Props =
-    Props(new TCPConnectionActor(connection, protocol, project, broadcaster))
+            broadcaster: ActorRef,
+            trace: Option[RpcTrace]): Props =
+    Props(
+      new TCPConnectionActor(connection, protocol, project, broadcaster, trace)
+    )
 }
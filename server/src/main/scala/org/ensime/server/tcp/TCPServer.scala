@@ -7,7 +7,7 @@ import java.net.InetSocketAddress
 
 import akka.actor.{ Actor, ActorLogging, ActorRef }
 import akka.io.{ IO, Tcp }
-import org.ensime.core.{ Protocol, ShutdownRequest }
+import org.ensime.core.{ Protocol, RpcTrace, ShutdownRequest }
 import org.ensime.server.PortUtil
 
 case object ClientConnectionClosed
@@ -18,7 +18,8 @@ class TCPServer(
   project: ActorRef,
   broadcaster: ActorRef,
   shutdownOnLastDisconnect: Boolean,
-  preferredPort: Option[Int]
+  preferredPort: Option[Int],
+  trace: Option[RpcTrace]
 ) extends Actor
     with ActorLogging {
 
@@ -59,7 +60,7 @@ class TCPServer(
       nextConnectionId += 1
       val connection = sender()
       val handler = context.actorOf(
-        TCPConnectionActor(connection, protocol, project, broadcaster),
+        TCPConnectionActor(connection, protocol, project, broadcaster, trace),
         s"con$connectionId"
       )
       activeConnections += 1
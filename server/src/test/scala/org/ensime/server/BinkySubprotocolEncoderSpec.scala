@@ -0,0 +1,114 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.Paths
+
+import spray.json._
+import org.ensime.api._
+import org.ensime.util.EnsimeSpec
+
+class BinkySubprotocolEncoderSpec extends EnsimeSpec {
+  import JsWriter.ops._
+
+  val file = RawFile(Paths.get("/src/main/scala/org/example/Foo.scala"))
+
+  val symbols = SourceSymbol.allSymbols.toVector
+
+  val highlighting = RpcResponseEnvelope(
+    Some(1),
+    SymbolDesignations(
+      file,
+      (0 until 2000).toList.map { i =>
+        SymbolDesignation(i * 10, i * 10 + 7, symbols(i % symbols.size))
+      }
+    )
+  )
+
+  val completions = RpcResponseEnvelope(
+    Some(2),
+    CompletionInfoList(
+      "fo",
+      (0 until 500).toList.map { i =>
+        CompletionInfo(None, s"foo$i", 90 - i % 10, None)
+      }
+    )
+  )
+
+  "BinkySubprotocolEncoder" should "round trip json through the string tables" in {
+    val server = new BinkySubprotocolEncoder
+    val client = new BinkySubprotocolEncoder
+    val json = JsObject(
+      "int"     -> JsNumber(-123456789L),
+      "decimal" -> JsNumber(BigDecimal("1.5")),
+      "strings" -> JsArray(JsString("a"), JsString("a"), JsString("é" * 300)),
+      "flags"   -> JsArray(JsBoolean.True, JsBoolean.False, JsNull)
+    )
+    client.readJson(server.writeJson(json)) shouldBe json
+    client.readJson(server.writeJson(json)) shouldBe json
+
+    val response = highlighting.toJson
+    client.readJson(server.writeFrame(highlighting)) shouldBe response
+  }
+
+  it should "read requests" in {
+    val client = new BinkySubprotocolEncoder
+    val server = new BinkySubprotocolEncoder
+    val request = JsObject(
+      "callId" -> JsNumber(3),
+      "req"    -> JsObject("typehint" -> JsString("ConnectionInfoReq"))
+    )
+    server.readFrame(client.writeJson(request)) shouldBe
+      Right(RpcRequestEnvelope(ConnectionInfoReq, 3))
+    server.readFrame(Array[Byte](1, 42)) shouldBe a[Left[_, _]]
+  }
+
+  it should "refuse deeply nested requests" in {
+    val client = new BinkySubprotocolEncoder
+    val server = new BinkySubprotocolEncoder
+    def nested(depth: Int): JsValue =
+      (1 to depth).foldLeft[JsValue](JsNull)((json, _) => JsArray(json))
+
+    server.readJson(client.writeJson(nested(64))) shouldBe nested(64)
+    server.readFrame(client.writeJson(nested(65))) shouldBe a[Left[_, _]]
+
+    // version, then arrays of one element, too deep to write recursively
+    val bomb =
+      Array[Byte](1) ++ Array.fill(100000)(Array[Byte](6, 1)).flatten :+ 0.toByte
+    server.readFrame(bomb) shouldBe a[Left[_, _]]
+  }
+
+  // the timings are only reported: binky encodes the same JsValue tree
+  // as jerky, so it saves bytes on the wire, not time to encode
+  it should "be smaller than jerky" in {
+    for ((name, envelope) <- List("highlighting" -> highlighting,
+                                  "completions"  -> completions)) {
+      val binky = new BinkySubprotocolEncoder
+
+      // warm up, and repeated responses after the string table is full
+      (1 to 20).foreach { _ =>
+        JerkySubprotocolEncoder.writeFrame(envelope)
+        binky.writeFrame(envelope)
+      }
+
+      def time(f: => Unit): Long = {
+        val start = System.nanoTime()
+        (1 to 20).foreach(_ => f)
+        (System.nanoTime() - start) / 20000
+      }
+
+      val jerkyBytes = JerkySubprotocolEncoder
+        .writeFrame(envelope)
+        .getBytes(UTF_8)
+        .length
+      val binkyBytes = binky.writeFrame(envelope).length
+      val jerkyMicros = time(JerkySubprotocolEncoder.writeFrame(envelope))
+      val binkyMicros = time(binky.writeFrame(envelope))
+
+      info(s"$name: jerky ${jerkyBytes}B in ${jerkyMicros}us")
+      info(s"$name: binky ${binkyBytes}B in ${binkyMicros}us")
+      binkyBytes should be < jerkyBytes / 3
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.server
+
+import java.io.File
+
+import akka.testkit._
+import org.ensime.api._
+import org.ensime.fixture.SharedTestKitFixture
+import org.ensime.util.EnsimeSpec
+
+class RequestHandlerSpec extends EnsimeSpec with SharedTestKitFixture {
+
+  val file: Either[File, SourceFileInfo] = Left(new File("Foo.scala"))
+
+  "RequestHandler" should "answer a doc request that was superseded" in withTestKit {
+    fix =>
+      import fix._
+      val project = TestProbe()
+      val server  = TestProbe()
+
+      def hover(callId: Int, point: Int) =
+        system.actorOf(
+          RequestHandler(
+            RpcRequestEnvelope(DocUriAtPointReq(file, OffsetRange(point)),
+                               callId),
+            project.ref,
+            server.ref,
+            None
+          ),
+          s"$callId"
+        )
+
+      hover(1, 10)
+      val first = project.expectMsgType[DocUriAtPointReq]
+      val superseded = project.lastSender
+      hover(2, 20)
+      project.expectMsgType[DocUriAtPointReq]
+      val latest = project.lastSender
+
+      // what the analyzer does when the second request arrives
+      project.send(superseded, EnsimeServerError("Superseded by a later request"))
+      project.send(latest, None)
+
+      server.expectMsgAllOf(
+        RpcResponseEnvelope(Some(1),
+                            EnsimeServerError("Superseded by a later request")),
+        RpcResponseEnvelope(Some(2), FalseResponse)
+      )
+      first.point shouldBe OffsetRange(10)
+  }
+}
@@ -7,6 +7,7 @@ import java.util.zip.ZipFile
 
 import org.apache.commons.vfs2._
 import org.apache.commons.vfs2.impl._
+import org.apache.commons.vfs2.provider.NameInterner
 import org.apache.commons.vfs2.provider.zip.ZipFileSystem
 import org.ensime.api.deprecating
 
@@ -81,16 +82,16 @@ object `package` {
     }
 
     def vfile(name: String) = withContext(s"$name =>")(
-      vfs.resolveFile(name.intern)
+      vfs.resolveFile(NameInterner.of(name))
     )
     def vfile(file: File) = withContext(s"$file =>")(
       vfs.toFileObject(file)
     )
     def vres(path: String) = withContext(s"$path =>")(
-      vfs.resolveFile(asUri("res", path).intern)
+      vfs.resolveFile(NameInterner.of(asUri("res", path)))
     )
     def vjar(jar: File) = withContext(s"$jar =>") {
-      vfs.resolveFile(asUri("jar", jar.getAbsolutePath).intern)
+      vfs.resolveFile(NameInterner.of(asUri("jar", jar.getAbsolutePath)))
     }
 
     private def asUri(scheme: String, path: String): String =
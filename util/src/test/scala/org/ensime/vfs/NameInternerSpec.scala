@@ -0,0 +1,35 @@
+// Copyright: 2010 - 2017 https://github.com/ensime/ensime-server/graphs
+// License: http://www.gnu.org/licenses/gpl-3.0.en.html
+package org.ensime.vfs
+
+import org.apache.commons.vfs2.provider.NameInterner
+import org.scalatest._
+
+class NameInternerSpec extends FlatSpec with Matchers {
+  "NameInterner.Weak" should "share equal strings" in {
+    val interner = new NameInterner.Weak(16)
+    val a        = new String("foo/bar/Baz.class")
+    val b        = new String("foo/bar/Baz.class")
+    interner.intern(a) should be theSameInstanceAs a
+    interner.intern(b) should be theSameInstanceAs a
+  }
+
+  it should "round the capacity up to a power of two" in {
+    new NameInterner.Weak(1).capacity shouldBe 1
+    new NameInterner.Weak(17).capacity shouldBe 32
+    new NameInterner.Weak(32).capacity shouldBe 32
+  }
+
+  it should "stay bounded under many distinct names" in {
+    val interner = new NameInterner.Weak(64)
+    (0 until 10000).foreach { i =>
+      val name = s"foo/Bar$i.class"
+      interner.intern(name) shouldBe name
+    }
+    interner.capacity shouldBe 64
+  }
+
+  "NameInterner.of" should "tolerate null" in {
+    NameInterner.of(null) shouldBe null
+  }
+}